@@ -0,0 +1,97 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares per-message write latency of the pipelined write path against the stop-and-wait loop
+ * on a connected device. Messages are sent as HID PING commands, which the device echoes back
+ * without user interaction; only the time spent writing is measured.
+ */
+public class U2FWriteBenchmark {
+
+    private static final String LOG_TAG = "U2FWriteBenchmark";
+
+    private static final byte TAG_PING = (byte) 0x81;
+
+    /**
+     * Payload sizes: one packet, a 7 packet registration sized message, and a long message.
+     */
+    private static final int[] MESSAGE_SIZES = {57, 411, 1024};
+    private static final int WARMUP = 5;
+
+    private final U2FTransportAndroidHID transport;
+    private final int iterations;
+
+    public U2FWriteBenchmark(U2FTransportAndroidHID transport, int iterations) {
+        this.transport = transport;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run the benchmark. The transport must have been initialized.
+     *
+     * @return A human readable report, also sent to the log.
+     * @throws IOException On communication error.
+     */
+    public String run() throws IOException {
+        StringBuilder report = new StringBuilder();
+        for (int size : MESSAGE_SIZES) {
+            byte[] payload = new byte[size];
+            long[] stopAndWait = measure(payload, false);
+            long[] pipelined = measure(payload, true);
+            String line = size + " bytes: stop-and-wait " + describe(stopAndWait)
+                    + ", pipelined " + describe(pipelined);
+            Log.d(LOG_TAG, line);
+            report.append(line).append('\n');
+        }
+        transport.setPipelinedWrites(true);
+        return report.toString();
+    }
+
+    private long[] measure(byte[] payload, boolean pipelined) throws IOException {
+        transport.setPipelinedWrites(pipelined);
+        long[] samples = new long[iterations];
+        for (int i = -WARMUP; i < iterations; i++) {
+            long start = System.nanoTime();
+            transport.writeMessage(TAG_PING, payload);
+            long elapsed = System.nanoTime() - start;
+            transport.readMessage(TAG_PING);
+            if (i >= 0) {
+                samples[i] = elapsed;
+            }
+        }
+        return samples;
+    }
+
+    private static String describe(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        return "mean " + (total / sorted.length / 1000) + " us, median "
+                + (sorted[sorted.length / 2] / 1000) + " us";
+    }
+}
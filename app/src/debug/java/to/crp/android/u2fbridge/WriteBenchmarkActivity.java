@@ -0,0 +1,127 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Runs {@link U2FWriteBenchmark} against the first connected device and shows the report. Only
+ * part of debug builds, as it writes to the user's key on request of any caller.
+ */
+public class WriteBenchmarkActivity extends AppCompatActivity {
+
+    private static final String TAG = "WriteBenchmark";
+
+    private static final int ITERATIONS = 100;
+
+    private class U2FBenchmarkRunner extends Thread implements U2FTransportFactoryCallback {
+
+        public void markStopped() {
+            interrupt();
+        }
+
+        public void onConnected(boolean success) {
+            String report;
+            if (success) {
+                U2FTransportAndroidHID transport = mSessionService.getTransport();
+                try {
+                    report = new U2FWriteBenchmark(transport, ITERATIONS).run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Benchmark failed", e);
+                    report = "Benchmark failed: " + e.getMessage();
+                    mSessionService.closeSession(transport);
+                }
+            } else {
+                report = "Could not connect to the device.";
+            }
+            final String shownReport = report;
+            WriteBenchmarkActivity.this.runOnUiThread(new Runnable() {
+                public void run() {
+                    ((TextView) findViewById(R.id.info_text)).setText(shownReport);
+                }
+            });
+        }
+
+        public void run() {
+            try {
+                mSessionService.getDeviceRegistry().awaitDevice();
+                mSessionService.connect(this);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private U2FBenchmarkRunner mBenchmarkThread;
+    private U2FSessionService mSessionService;
+    private boolean mBound;
+
+    private final ServiceConnection mSessionConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mSessionService = ((U2FSessionService.LocalBinder) service).getService();
+            mBenchmarkThread.start();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mSessionService = null;
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_main);
+        setSupportActionBar((Toolbar) findViewById(R.id.toolbar));
+        findViewById(R.id.cancel_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                finish();
+            }
+        });
+        mBenchmarkThread = new U2FBenchmarkRunner();
+        Intent service = new Intent(this, U2FSessionService.class);
+        startService(service);
+        mBound = bindService(service, mSessionConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mBenchmarkThread.markStopped();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mBound) {
+            unbindService(mSessionConnection);
+            mBound = false;
+        }
+    }
+}
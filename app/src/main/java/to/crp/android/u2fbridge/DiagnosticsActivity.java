@@ -0,0 +1,138 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Shows the latency of each phase of the requests and the traffic counters, and dumps them to a
+ * file in the app's external files directory.
+ *
+ * Also turns the wire recording of the sessions on and off. It is off by default, as the packets
+ * carry the challenges, key handles and signatures, and is kept in the internal files directory.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final String TAG = "DiagnosticsActivity";
+    private static final String PREFERENCES = "diagnostics";
+    private static final String PREFERENCE_WIRE_RECORDING = "wire_recording";
+
+    private TextView mReportText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        mReportText = (TextView) findViewById(R.id.report_text);
+        ((Button) findViewById(R.id.refresh_button)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                refresh();
+            }
+        });
+        ((Button) findViewById(R.id.dump_button)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                dump();
+            }
+        });
+        ((Button) findViewById(R.id.reset_button)).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                U2FMetrics.getInstance().reset();
+                refresh();
+            }
+        });
+        CheckBox wireRecording = (CheckBox) findViewById(R.id.wire_recording_check);
+        wireRecording.setChecked(isWireRecordingEnabled(this));
+        wireRecording.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean checked) {
+                getPreferences(DiagnosticsActivity.this).edit().putBoolean(PREFERENCE_WIRE_RECORDING, checked).apply();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        mReportText.setText(U2FMetrics.getInstance().dump());
+    }
+
+    /**
+     * @return Whether the sessions opened from now on are recorded.
+     */
+    public static boolean isWireRecordingEnabled(Context context) {
+        return getPreferences(context).getBoolean(PREFERENCE_WIRE_RECORDING, false);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The external files directory when there is one, so that dumps can be pulled
+     * without root, otherwise the internal one.
+     */
+    public static File getOutputDirectory(Context context) {
+        File directory = context.getExternalFilesDir(null);
+        return (directory != null ? directory : context.getFilesDir());
+    }
+
+    /**
+     * Write the report to a new file.
+     */
+    private void dump() {
+        File file = new File(getOutputDirectory(this), "u2f-metrics-" + System.currentTimeMillis() + ".txt");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(U2FMetrics.getInstance().dump().getBytes("UTF-8"));
+            Toast.makeText(this, getString(R.string.diagnostics_dumped, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing metrics: " + e.getMessage());
+            Toast.makeText(this, R.string.diagnostics_dump_failed, Toast.LENGTH_LONG).show();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the requests of an intent on the attached devices through the session service.
+ *
+ * Each request is run on every device at once until one of them answers; the remaining requests
+ * of a batch are then run one after the other on that device only, over its open channel.
+ *
+ * The whole task, from waiting for a device to the last response, is bounded by the timeout of
+ * the intent, or {@link #DEFAULT_TIMEOUT_SECONDS} if it has none.
+ */
+public class U2FAuthTask implements U2FRequestScheduler.Task<byte[][]>, U2FTransportFactoryCallback {
+
+    private static final String TAG = "U2FAuthTask";
+    private static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    private final U2FSessionService service;
+    private final U2FBatch batch;
+    private U2FRequestScheduler<byte[][]>.Ticket ticket;
+    private volatile U2FRequestFanOut fanOut;
+    private volatile U2FRequestProcessor processor;
+    private volatile Thread waitingThread;
+    private volatile boolean connecting;
+    private volatile boolean cancelled;
+    private long deadline;
+
+    public U2FAuthTask(U2FSessionService service, U2FBatch batch) {
+        this.service = service;
+        this.batch = batch;
+    }
+
+    /**
+     * @return The requests, with the chosen key handles once signed.
+     */
+    public U2FBatch getBatch() {
+        return batch;
+    }
+
+    public void start(U2FRequestScheduler<byte[][]>.Ticket ticket) {
+        this.ticket = ticket;
+        // drop an interrupt meant for the task that ran before on this thread
+        Thread.interrupted();
+        int timeoutSeconds = batch.getTimeoutSeconds();
+        if (timeoutSeconds == 0) {
+            timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+        }
+        long waitStart = System.nanoTime();
+        deadline = waitStart + timeoutSeconds * 1000000000L;
+        Log.d(TAG, "Waiting for USB device to be connected...");
+        waitingThread = Thread.currentThread();
+        try {
+            if (!cancelled) {
+                if (service.getDeviceRegistry().awaitDevice(deadline) == null) {
+                    Log.d(TAG, "No device attached before the deadline.");
+                    ticket.complete(null);
+                    return;
+                }
+                U2FMetrics.getInstance().recordSince(U2FMetrics.Phase.DEVICE_WAIT, waitStart);
+            }
+            connecting = true;
+            if (!cancelled) {
+                Log.d(TAG, "Connecting to the session.");
+                service.connect(this, deadline);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Stopped while waiting.");
+        } finally {
+            waitingThread = null;
+        }
+        ticket.complete(null);
+    }
+
+    public void cancel() {
+        cancelled = true;
+        U2FRequestFanOut runningFanOut = fanOut;
+        if (runningFanOut != null) {
+            runningFanOut.markStopped();
+        }
+        U2FRequestProcessor runningProcessor = processor;
+        if (runningProcessor != null) {
+            runningProcessor.markStopped();
+        }
+        Thread waiting = waitingThread;
+        if (waiting != null) {
+            waiting.interrupt();
+        }
+        if (connecting && service.cancelConnect(this)) {
+            // the request was waiting for a permission dialog
+            ticket.complete(null);
+        }
+    }
+
+    public void onConnected(boolean success) {
+        Log.d(TAG, "Connected? " + success);
+        if (!success || cancelled) {
+            ticket.complete(null);
+            return;
+        }
+        List<U2FContext> contexts = batch.getContexts();
+        byte[][] responses = new byte[contexts.size()][];
+        List<U2FRequestFanOut> fanOuts = new ArrayList<U2FRequestFanOut>();
+        U2FTransport chosen = null;
+        boolean expired = false;
+        for (int i = 0; (i < contexts.size()) && !cancelled && !expired; i++) {
+            U2FContext context = contexts.get(i);
+            byte[] response = null;
+            try {
+                U2FCodec.prepareClientData(context);
+                if (chosen == null) {
+                    U2FRequestFanOut fanOut = new U2FRequestFanOut(service.getFanOutExecutor(), service.getTransports());
+                    fanOut.setDeadline(deadline);
+                    fanOuts.add(fanOut);
+                    this.fanOut = fanOut;
+                    if (cancelled) {
+                        fanOut.markStopped();
+                    }
+                    response = fanOut.process(context);
+                    chosen = fanOut.getWinner();
+                    // the flows swallow their own timeouts, failed transports are closed below
+                    expired = (chosen == null) && (System.nanoTime() - deadline >= 0);
+                } else {
+                    U2FRequestProcessor processor = new U2FRequestProcessor(chosen);
+                    processor.setDeadline(deadline);
+                    this.processor = processor;
+                    if (cancelled) {
+                        processor.markStopped();
+                    }
+                    if (context.isSign()) {
+                        response = processor.processSign(context);
+                    } else {
+                        response = processor.processRegister(context);
+                    }
+                }
+            } catch (U2FTimeoutException e) {
+                Log.d(TAG, "Deadline passed on request " + i + ": " + e.getMessage());
+                // a transfer may have been cut in the middle of a message
+                service.closeSession(chosen);
+                expired = true;
+                response = null;
+            } catch (Exception e) {
+                e.printStackTrace();
+                response = null;
+            }
+            responses[i] = (U2FRequestProcessor.isResponseOK(response) ? response : null);
+        }
+        // the sessions can only be used again once the losing flows have stopped, so the next
+        // task must not start before
+        for (U2FRequestFanOut fanOut : fanOuts) {
+            try {
+                fanOut.awaitTermination();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted while stopping the other devices.");
+            }
+            for (U2FTransport failed : fanOut.getFailedTransports()) {
+                service.closeSession(failed);
+            }
+        }
+        ticket.complete(responses);
+    }
+}
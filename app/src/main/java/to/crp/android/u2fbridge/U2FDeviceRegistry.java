@@ -0,0 +1,196 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the set of attached candidate FIDO devices up to date from the USB attach and detach
+ * broadcasts, and wakes threads waiting for a device as soon as one is attached.
+ */
+public class U2FDeviceRegistry {
+
+    /**
+     * Told when a tracked device is detached.
+     */
+    public interface DetachListener {
+        void onDetached(UsbDevice device);
+    }
+
+    private static final String LOG_TAG = "U2FDeviceRegistry";
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final LinkedHashMap<String, UsbDevice> devices = new LinkedHashMap<String, UsbDevice>();
+    private boolean registered;
+    private
+    @Nullable
+    DetachListener detachListener;
+
+    private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (usbDevice == null) {
+                return;
+            }
+            if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                attached(usbDevice);
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                detached(usbDevice);
+            }
+        }
+    };
+
+    public U2FDeviceRegistry(Context context) {
+        this.context = context.getApplicationContext();
+        usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    }
+
+    /**
+     * Start tracking devices: take the devices already attached, then follow the broadcasts.
+     */
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        context.registerReceiver(mUsbReceiver, filter);
+        registered = true;
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (isCandidate(device)) {
+                devices.put(device.getDeviceName(), device);
+            }
+        }
+        notifyAll();
+    }
+
+    public synchronized void unregister() {
+        if (!registered) {
+            return;
+        }
+        context.unregisterReceiver(mUsbReceiver);
+        registered = false;
+        devices.clear();
+    }
+
+    public synchronized void setDetachListener(@Nullable DetachListener listener) {
+        detachListener = listener;
+    }
+
+    /**
+     * @return The first attached candidate device, or null if there is none.
+     */
+    public synchronized
+    @Nullable
+    UsbDevice getDevice() {
+        for (UsbDevice device : devices.values()) {
+            return device;
+        }
+        return null;
+    }
+
+    /**
+     * @return Every attached candidate device, in attach order.
+     */
+    public synchronized List<UsbDevice> getDevices() {
+        return new ArrayList<UsbDevice>(devices.values());
+    }
+
+    /**
+     * Block until a candidate device is attached.
+     *
+     * @return The first attached candidate device.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public synchronized UsbDevice awaitDevice() throws InterruptedException {
+        UsbDevice device;
+        while ((device = getDevice()) == null) {
+            wait();
+        }
+        return device;
+    }
+
+    /**
+     * Block until a candidate device is attached or the deadline passes.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} to stop waiting at, or 0 to wait forever.
+     * @return The first attached candidate device, or NULL if the deadline passed first.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public synchronized
+    @Nullable
+    UsbDevice awaitDevice(long deadlineNanos) throws InterruptedException {
+        if (deadlineNanos == 0) {
+            return awaitDevice();
+        }
+        UsbDevice device;
+        while ((device = getDevice()) == null) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining / 1000000, (int) (remaining % 1000000));
+        }
+        return device;
+    }
+
+    private synchronized void attached(UsbDevice device) {
+        if (isCandidate(device)) {
+            Log.d(LOG_TAG, "Attached " + device.getDeviceName());
+            devices.put(device.getDeviceName(), device);
+            notifyAll();
+        }
+    }
+
+    private void detached(UsbDevice device) {
+        DetachListener listener;
+        synchronized (this) {
+            if (devices.remove(device.getDeviceName()) == null) {
+                return;
+            }
+            Log.d(LOG_TAG, "Detached " + device.getDeviceName());
+            listener = detachListener;
+        }
+        if (listener != null) {
+            listener.onDetached(device);
+        }
+    }
+
+    /**
+     * @return Whether the device is a HID or class-per-interface device.
+     */
+    public static boolean isCandidate(UsbDevice device) {
+        return (device.getDeviceClass() == UsbConstants.USB_CLASS_HID)
+                || (device.getDeviceClass() == UsbConstants.USB_CLASS_PER_INTERFACE);
+    }
+}
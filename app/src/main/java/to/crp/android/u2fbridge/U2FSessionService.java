@@ -0,0 +1,512 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import android.app.Service;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the transports to the attached authenticators open and initialized between requests.
+ *
+ * The first request opens every candidate device, claims its interface and allocates a channel.
+ * Later requests are run on these warm sessions as long as the devices stay attached, and the
+ * channel is kept per device so that reopening a session does not allocate a new one. A session
+ * is closed when its device is detached or when a request fails on it, and every session is
+ * closed after {@link #IDLE_TIMEOUT} without a request, after which the service stops itself.
+ * The channel of a session closed after a failure is forgotten, so that the next session
+ * allocates a new one rather than failing its first exchange on it.
+ *
+ * No thread waits for the USB permission dialog: devices the permission is held for are opened
+ * at once, and a request finding none is completed on a background thread once a permission is
+ * granted. Devices the user refused are not asked for again until reattached.
+ *
+ * When turned on in {@link DiagnosticsActivity}, the packets of the sessions opened are recorded
+ * in the internal files directory, into one file per report size, to be replayed offline with
+ * {@link U2FReplayRun}.
+ */
+public class U2FSessionService extends Service {
+
+    private static final String LOG_TAG = "U2FSessionService";
+
+    private static final long IDLE_TIMEOUT = 120000;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final String TRACE_FILE_PREFIX = "wire-trace-";
+    private static final int TRACE_RECORDS = 4096;
+
+    public class LocalBinder extends Binder {
+        public U2FSessionService getService() {
+            return U2FSessionService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Semaphore inUse = new Semaphore(1);
+    private final HashMap<String, Integer> channels = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> capabilities = new HashMap<String, Integer>();
+    private final LinkedHashMap<String, U2FTransportAndroidHID> sessions = new LinkedHashMap<String, U2FTransportAndroidHID>();
+    private final HashSet<String> denied = new HashSet<String>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // one thread per device a request is fanned out to, kept between requests
+    private final ExecutorService fanOutExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "U2FRequestFanOut-" + count.getAndIncrement());
+        }
+    });
+    private U2FDeviceRegistry registry;
+    private U2FRequestScheduler<byte[][]> scheduler;
+    private U2FTransportAndroid transportFactory;
+    // wire recordings by report size
+    private final HashMap<Integer, U2FWireRecorder> recorders = new HashMap<Integer, U2FWireRecorder>();
+    private
+    @Nullable
+    U2FTransportFactoryCallback pendingCallback;
+    private int pendingPermissions;
+    private volatile long connectDeadline;
+
+    private final U2FTransportAndroid.PermissionCallback permissionCallback = new U2FTransportAndroid.PermissionCallback() {
+        public void onPermission(final UsbDevice device, final boolean granted) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    permissionResult(device, granted);
+                }
+            });
+        }
+    };
+
+    private final Runnable idleTimeout = new Runnable() {
+        public void run() {
+            Log.d(LOG_TAG, "Sessions idle, closing.");
+            closeSessions();
+            stopSelf();
+        }
+    };
+
+    /**
+     * Completes a request deferred by {@link #connect(U2FTransportFactoryCallback, long)} whose
+     * deadline passed before a permission was granted.
+     */
+    private final Runnable connectTimeout = new Runnable() {
+        public void run() {
+            U2FTransportFactoryCallback callback;
+            synchronized (U2FSessionService.this) {
+                callback = pendingCallback;
+                if (callback == null) {
+                    return;
+                }
+                pendingCallback = null;
+            }
+            Log.d(LOG_TAG, "Deadline passed while waiting for a permission.");
+            try {
+                callback.onConnected(false);
+            } finally {
+                release();
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        scheduler = new U2FRequestScheduler<byte[][]>(QUEUE_CAPACITY);
+        transportFactory = new U2FTransportAndroid(this);
+        registry = new U2FDeviceRegistry(this);
+        registry.setDetachListener(new U2FDeviceRegistry.DetachListener() {
+            public void onDetached(UsbDevice detached) {
+                U2FTransportAndroidHID closed;
+                synchronized (U2FSessionService.this) {
+                    closed = sessions.remove(detached.getDeviceName());
+                    channels.remove(detached.getDeviceName());
+                    capabilities.remove(detached.getDeviceName());
+                    denied.remove(detached.getDeviceName());
+                }
+                if (closed != null) {
+                    Log.d(LOG_TAG, "Session device detached.");
+                    close(closed);
+                }
+            }
+        });
+        registry.register();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (inUse.availablePermits() > 0) {
+            handler.removeCallbacks(idleTimeout);
+            handler.postDelayed(idleTimeout, IDLE_TIMEOUT);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                warmUp();
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacks(idleTimeout);
+        handler.removeCallbacks(connectTimeout);
+        scheduler.shutdown();
+        executor.shutdownNow();
+        fanOutExecutor.shutdownNow();
+        transportFactory.close();
+        closeSessions();
+        registry.setDetachListener(null);
+        registry.unregister();
+        synchronized (this) {
+            for (U2FWireRecorder recorder : recorders.values()) {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                }
+            }
+            recorders.clear();
+        }
+        super.onDestroy();
+    }
+
+    public U2FDeviceRegistry getDeviceRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return The executor running the flows of a {@link U2FRequestFanOut}.
+     */
+    public Executor getFanOutExecutor() {
+        return fanOutExecutor;
+    }
+
+    /**
+     * @return The scheduler running the requests one at a time.
+     */
+    public U2FRequestScheduler<byte[][]> getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return The transports of the open sessions, in attach order, for use from
+     * {@link U2FTransportFactoryCallback#onConnected}.
+     */
+    public synchronized List<U2FTransportAndroidHID> getTransports() {
+        return new ArrayList<U2FTransportAndroidHID>(sessions.values());
+    }
+
+    /**
+     * @return The transport of the first open session, or NULL if there is none.
+     */
+    public synchronized
+    @Nullable
+    U2FTransportAndroidHID getTransport() {
+        for (U2FTransportAndroidHID transport : sessions.values()) {
+            return transport;
+        }
+        return null;
+    }
+
+    /**
+     * Run a request on the sessions, first opening one on each attached device that has none.
+     * Requests are run one at a time.
+     *
+     * The callback is called on the calling thread once the transports are initialized, or, if
+     * no device can be used before the user grants a permission, later on a background thread.
+     *
+     * @param callback Told whether at least one session is open.
+     * @throws InterruptedException If interrupted while another request runs.
+     */
+    public void connect(U2FTransportFactoryCallback callback) throws InterruptedException {
+        connect(callback, 0);
+    }
+
+    /**
+     * Run a request on the sessions like {@link #connect(U2FTransportFactoryCallback)}, within a
+     * deadline: new sessions must be initialized by then, and a request still waiting for a
+     * permission at the deadline is told that no session is open, on the main thread.
+     *
+     * @param callback      Told whether at least one session is open.
+     * @param deadlineNanos The {@link System#nanoTime()} to give up at, or 0 for none.
+     * @throws InterruptedException If interrupted while another request runs.
+     */
+    public void connect(U2FTransportFactoryCallback callback, long deadlineNanos) throws InterruptedException {
+        inUse.acquire();
+        handler.removeCallbacks(idleTimeout);
+        connectDeadline = deadlineNanos;
+        boolean deferred = false;
+        try {
+            List<UsbDevice> asking = new ArrayList<UsbDevice>();
+            for (UsbDevice device : registry.getDevices()) {
+                boolean skip;
+                synchronized (this) {
+                    skip = sessions.containsKey(device.getDeviceName()) || denied.contains(device.getDeviceName());
+                }
+                if (skip) {
+                    continue;
+                }
+                if (transportFactory.hasPermission(device)) {
+                    openSession(device);
+                } else {
+                    asking.add(device);
+                }
+            }
+            synchronized (this) {
+                pendingPermissions += asking.size();
+                if ((getTransport() == null) && !asking.isEmpty()) {
+                    pendingCallback = callback;
+                    deferred = true;
+                }
+            }
+            if (deferred && (deadlineNanos != 0)) {
+                long delay = Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000);
+                handler.postDelayed(connectTimeout, delay);
+            }
+            for (UsbDevice device : asking) {
+                transportFactory.requestPermission(device, permissionCallback);
+            }
+            if (!deferred) {
+                callback.onConnected(getTransport() != null);
+            }
+        } finally {
+            if (!deferred) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Give up a request deferred by {@link #connect} until a permission is granted. The permission
+     * dialog stays up, and its answer still opens the session for later requests.
+     *
+     * @return Whether the request was waiting, in which case its callback will not be called.
+     */
+    public boolean cancelConnect(U2FTransportFactoryCallback callback) {
+        synchronized (this) {
+            if (pendingCallback != callback) {
+                return false;
+            }
+            pendingCallback = null;
+        }
+        handler.removeCallbacks(connectTimeout);
+        release();
+        return true;
+    }
+
+    /**
+     * Close the session of a transport, so that the next request opens its device again. Called
+     * when a request failed on the transport and its state cannot be trusted, so its channel is
+     * not kept.
+     */
+    public void closeSession(U2FTransport transport) {
+        U2FTransportAndroidHID closed = null;
+        synchronized (this) {
+            Iterator<Map.Entry<String, U2FTransportAndroidHID>> iterator = sessions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, U2FTransportAndroidHID> session = iterator.next();
+                if (session.getValue() == transport) {
+                    closed = session.getValue();
+                    // also forget the channel kept from an earlier session, which the failure
+                    // puts in doubt: a fresh INIT is cheaper than a failed exchange and a resync
+                    channels.remove(session.getKey());
+                    capabilities.remove(session.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        if (closed != null) {
+            close(closed);
+        }
+    }
+
+    /**
+     * Close every session.
+     */
+    public void closeSessions() {
+        List<U2FTransportAndroidHID> closed;
+        synchronized (this) {
+            closed = new ArrayList<U2FTransportAndroidHID>(sessions.values());
+            for (Map.Entry<String, U2FTransportAndroidHID> session : sessions.entrySet()) {
+                channels.put(session.getKey(), session.getValue().getChannel());
+                capabilities.put(session.getKey(), session.getValue().getCapabilities());
+            }
+            sessions.clear();
+        }
+        for (U2FTransportAndroidHID transport : closed) {
+            close(transport);
+        }
+    }
+
+    private void release() {
+        connectDeadline = 0;
+        inUse.release();
+        handler.postDelayed(idleTimeout, IDLE_TIMEOUT);
+    }
+
+    /**
+     * Open sessions on the devices the permission is already held for, when no request runs.
+     */
+    private void warmUp() {
+        if (!inUse.tryAcquire()) {
+            return;
+        }
+        handler.removeCallbacks(idleTimeout);
+        try {
+            for (UsbDevice device : registry.getDevices()) {
+                boolean open;
+                synchronized (this) {
+                    open = sessions.containsKey(device.getDeviceName());
+                }
+                if (!open && transportFactory.hasPermission(device)) {
+                    openSession(device);
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Open the session of a device once its permission is known, and complete the deferred
+     * request when a session is open or no answer is left to wait for. Runs on {@link #executor}.
+     */
+    private void permissionResult(UsbDevice device, boolean granted) {
+        if (granted) {
+            if (registry.getDevices().contains(device)) {
+                openSession(device);
+            }
+        } else {
+            synchronized (this) {
+                denied.add(device.getDeviceName());
+            }
+        }
+        U2FTransportFactoryCallback callback;
+        synchronized (this) {
+            pendingPermissions--;
+            callback = pendingCallback;
+            if ((callback == null) || ((getTransport() == null) && (pendingPermissions > 0))) {
+                return;
+            }
+            pendingCallback = null;
+        }
+        handler.removeCallbacks(connectTimeout);
+        try {
+            callback.onConnected(getTransport() != null);
+        } finally {
+            release();
+        }
+    }
+
+    private void openSession(UsbDevice device) {
+        U2FTransportAndroidHID opened = transportFactory.open(device);
+        if (opened != null) {
+            startSession(opened, device);
+        }
+    }
+
+    /**
+     * Record the packets of a session, into the recording of its report size so that every record
+     * holds a whole packet.
+     */
+    private void attachRecorder(U2FTransportAndroidHID opened) {
+        int reportSize = Math.max(opened.getPacketSize(), opened.getInPacketSize());
+        U2FWireRecorder recorder;
+        synchronized (this) {
+            recorder = recorders.get(reportSize);
+            if (recorder == null) {
+                File file = new File(getFilesDir(), TRACE_FILE_PREFIX + reportSize + ".bin");
+                try {
+                    recorder = new U2FWireRecorder(file, TRACE_RECORDS, reportSize);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Could not open the wire recording, session not recorded.", e);
+                    return;
+                }
+                recorders.put(reportSize, recorder);
+            }
+        }
+        opened.setTraceSink(recorder.newSink());
+    }
+
+    private void startSession(U2FTransportAndroidHID opened, UsbDevice device) {
+        Integer channel;
+        Integer flags;
+        synchronized (this) {
+            channel = channels.get(device.getDeviceName());
+            flags = capabilities.get(device.getDeviceName());
+        }
+        if (DiagnosticsActivity.isWireRecordingEnabled(this)) {
+            attachRecorder(opened);
+        }
+        opened.setDeadline(connectDeadline);
+        try {
+            if (channel != null) {
+                Log.d(LOG_TAG, "Reusing channel " + channel);
+                opened.setChannel(channel);
+                if (flags != null) {
+                    opened.setCapabilities(flags);
+                }
+            } else {
+                opened.init();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not initialize the session.", e);
+            close(opened);
+            return;
+        } finally {
+            opened.setDeadline(0);
+        }
+        synchronized (this) {
+            sessions.put(device.getDeviceName(), opened);
+        }
+        Log.d(LOG_TAG, "Session opened on " + device.getDeviceName());
+    }
+
+    private static void close(U2FTransportAndroidHID transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -27,204 +27,192 @@ import android.hardware.usb.*;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.List;
+
+/**
+ * Obtains the permission to use USB devices and opens them on their FIDO interface.
+ *
+ * Permission is asked without blocking: the callback is called at once when the permission is
+ * already held, and otherwise from the broadcast answering the system dialog, on the main thread.
+ */
 public class U2FTransportAndroid {
 
-    private boolean stopped;
-    private UsbManager usbManager;
-    private
-    @Nullable
-    U2FTransportAndroidHID transport;
-    private final LinkedBlockingQueue<Boolean> gotRights = new LinkedBlockingQueue<Boolean>(1);
+    /**
+     * Told once the permission to use a device is known.
+     */
+    public interface PermissionCallback {
+        void onPermission(UsbDevice device, boolean granted);
+    }
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final HashMap<String, List<PermissionCallback>> pending = new HashMap<String, List<PermissionCallback>>();
+    private final HashMap<String, Long> requestedAt = new HashMap<String, Long>();
+    private boolean registered;
 
     private static final String LOG_TAG = "U2FTransportAndroid";
 
     private static final String ACTION_USB_PERMISSION = "USB_PERMISSION";
 
     /**
-     * Receives broadcast when a supported USB device is attached, detached or
-     * when a permission to communicate to the device has been granted.
+     * Receives the broadcast telling whether a permission to communicate to a device has been
+     * granted.
      */
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+            if (!ACTION_USB_PERMISSION.equals(intent.getAction())) {
+                return;
+            }
             UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-            String deviceName = usbDevice.getDeviceName();
-
-            if (ACTION_USB_PERMISSION.equals(action)) {
-                boolean permission = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED,
-                        false);
-                // sync with connect
-                gotRights.clear();
-                gotRights.add(permission);
-                context.unregisterReceiver(mUsbReceiver);
+            if (usbDevice == null) {
+                return;
+            }
+            boolean permission = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
+            Log.d(LOG_TAG, "Permission for " + usbDevice.getDeviceName() + ": " + permission);
+            List<PermissionCallback> callbacks;
+            synchronized (U2FTransportAndroid.this) {
+                Long start = requestedAt.remove(usbDevice.getDeviceName());
+                if (start != null) {
+                    U2FMetrics.getInstance().recordSince(U2FMetrics.Phase.PERMISSION, start);
+                }
+                callbacks = pending.remove(usbDevice.getDeviceName());
+                if (pending.isEmpty()) {
+                    unregister();
+                }
+            }
+            if (callbacks != null) {
+                for (PermissionCallback callback : callbacks) {
+                    callback.onPermission(usbDevice, permission);
+                }
             }
         }
     };
 
     public U2FTransportAndroid(Context context) {
+        this.context = context.getApplicationContext();
         usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
     }
 
     /**
-     * @return Whether a USB device is connected.
+     * Ask for the permission to use a device. Only one system dialog is shown per device however
+     * many callers ask while it is up.
+     *
+     * @param device   The device.
+     * @param callback Told the outcome, before this returns if the permission is already held.
      */
-    public boolean isPluggedIn() {
-        return getDevice(usbManager) != null;
-    }
-
-    public void markStopped() {
-        Log.d(LOG_TAG, "Marked as stopped.");
-        stopped = true;
-    }
-
-    public U2FTransportAndroidHID getTransport() {
-        return transport;
-    }
-
-    public void connect(final Context context, final U2FTransportFactoryCallback callback) {
-        Log.d(LOG_TAG, "Connecting.");
-        if (transport != null) {
-            try {
-                transport.close();
-            } catch (Exception e) {
-            }
+    public void requestPermission(UsbDevice device, PermissionCallback callback) {
+        if (usbManager.hasPermission(device)) {
+            callback.onPermission(device, true);
+            return;
         }
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(ACTION_USB_PERMISSION);
-        context.registerReceiver(mUsbReceiver, filter);
-
-
-        final UsbDevice device = getDevice(usbManager);
-        final Intent intent = new Intent(ACTION_USB_PERMISSION);
-
-        gotRights.clear();
-        Log.d(LOG_TAG, "Requesting permission for USB device.");
-        usbManager.requestPermission(device, PendingIntent.getBroadcast(context, 0, intent, 0));
-        // retry because of InterruptedException
-        while (true) {
-            try {
-                // gotRights.take blocks until the UsbManager gives us the rights via callback to the BroadcastReceiver
-                // this might need an user interaction
-                if (gotRights.take()) {
-                    Log.d(LOG_TAG, "Received permission.");
-                    if (!stopped) {
-                        transport = open(usbManager, device);
-                        callback.onConnected((transport != null ? true : false));
-                    }
-                    return;
-                } else {
-                    Log.d(LOG_TAG, "Did not receive permission.");
-                    if (!stopped) {
-                        callback.onConnected(false);
-                    }
-                    return;
-                }
-            } catch (InterruptedException ignored) {
+        synchronized (this) {
+            List<PermissionCallback> callbacks = pending.get(device.getDeviceName());
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+            callbacks = new ArrayList<PermissionCallback>();
+            callbacks.add(callback);
+            pending.put(device.getDeviceName(), callbacks);
+            requestedAt.put(device.getDeviceName(), System.nanoTime());
+            if (!registered) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(ACTION_USB_PERMISSION);
+                context.registerReceiver(mUsbReceiver, filter);
+                registered = true;
             }
         }
+        Log.d(LOG_TAG, "Requesting permission for " + device.getDeviceName());
+        usbManager.requestPermission(device, PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), 0));
     }
 
     /**
-     * @param manager
-     * @return The first HID or class-per-interface device or null if no device is found
+     * @return Whether the permission to use the device is held.
+     */
+    public boolean hasPermission(UsbDevice device) {
+        return usbManager.hasPermission(device);
+    }
+
+    /**
+     * Open a device the permission is held for.
+     *
+     * @return The transport, or NULL if the device could not be opened.
      */
     public
     @Nullable
-    static UsbDevice getDevice(UsbManager manager) {
-        HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
-        for (UsbDevice device : deviceList.values()) {
-            if ((device.getDeviceClass() == UsbConstants.USB_CLASS_HID) || (device.getDeviceClass() == UsbConstants.USB_CLASS_PER_INTERFACE)) {
-                return device;
-            }
+    U2FTransportAndroidHID open(UsbDevice device) {
+        long start = System.nanoTime();
+        U2FTransportAndroidHID transport = open(usbManager, device);
+        if (transport != null) {
+            U2FMetrics.getInstance().recordSince(U2FMetrics.Phase.OPEN, start);
         }
-        return null;
+        return transport;
     }
 
-    private static final int LIBUSB_REQUEST_GET_DESCRIPTOR = 0x06;
-    private static final int LIBUSB_DT_REPORT = 0x22;
-    private static final int LIBUSB_RECIPIENT_INTERFACE = 0x01;
-
+    /**
+     * Forget the pending requests and stop listening for their outcome.
+     */
+    public synchronized void close() {
+        pending.clear();
+        requestedAt.clear();
+        unregister();
+    }
 
-    private static int getBytes(byte[] data, int length, int size, int cur) {
-        int result = 0;
-        if (cur + size >= length) {
-            return 0;
+    private void unregister() {
+        if (registered) {
+            context.unregisterReceiver(mUsbReceiver);
+            registered = false;
         }
-        switch (size) {
-            case 0:
-                break;
-            case 1:
-                result = (data[cur + 1] & 0xff);
-                break;
-            case 2:
-                result = ((data[cur + 2] & 0xff) << 8) | (data[cur + 1] & 0xff);
-                break;
-            case 3:
-                result = ((data[cur + 4] & 0xff) << 24) | ((data[cur + 3] & 0xff) << 16) | ((data[cur + 2] & 0xff) << 8) | (data[cur + 1] & 0xff);
-                break;
-        }
-        return result;
     }
 
-    private static int getUsage(byte[] report) {
-        return getUsagePageOrUsage(report, report.length, true);
-    }
+    private static final int USB_REQUEST_GET_DESCRIPTOR = 0x06;
+    private static final int USB_DT_REPORT = 0x22;
+    private static final int USB_RECIPIENT_INTERFACE = 0x01;
+    private static final int MAX_REPORT_DESCRIPTOR_SIZE = 1024;
+    private static final int DEFAULT_REPORT_SIZE = 64;
+    private static final int DESCRIPTOR_TIMEOUT = 2000;
 
-    private static int getUsagePage(byte[] report) {
-        return getUsagePageOrUsage(report, report.length, false);
+    /**
+     * Where the FIDO interface of a device model is, found once from its descriptors.
+     */
+    private static class InterfaceInfo {
+        final int interfaceIndex;
+        final int inAddress;
+        final int outAddress;
+        final int inReportSize;
+        final int outReportSize;
+        // found from the report descriptor rather than guessed from the endpoints
+        final boolean verified;
+
+        InterfaceInfo(int interfaceIndex, int inAddress, int outAddress, int inReportSize, int outReportSize,
+                      boolean verified) {
+            this.interfaceIndex = interfaceIndex;
+            this.inAddress = inAddress;
+            this.outAddress = outAddress;
+            this.inReportSize = inReportSize;
+            this.outReportSize = outReportSize;
+            this.verified = verified;
+        }
     }
 
-    private static int getUsagePageOrUsage(byte[] data, int size, boolean getUsage) {
-        int result = -1;
-        int i = 0;
-        int size_code;
-        int data_len, key_size;
-        while (i < size) {
-            int key = (data[i] & 0xff);
-            int key_cmd = key & 0xfc;
-            if ((key & 0xf0) == 0xf0) {
-                if (i + 1 < size) {
-                    data_len = data[i + 1];
-                } else {
-                    data_len = 0;
-                }
-                key_size = 3;
-            } else {
-                size_code = key & 0x03;
-                switch (size_code) {
-                    case 0:
-                    case 1:
-                    case 2:
-                        data_len = size_code;
-                        break;
-                    case 3:
-                        data_len = 4;
-                        break;
-                    default:
-                        data_len = 0;
-                        break;
-                }
-                key_size = 1;
-            }
-            if ((key_cmd == 0x04) && !getUsage) {
-                result = getBytes(data, size, data_len, i);
-                break;
-            }
-            if ((key_cmd == 0x08) && getUsage) {
-                result = getBytes(data, size, data_len, i);
-                break;
-            }
-            i += data_len + key_size;
-        }
-        return result;
+    /**
+     * FIDO interfaces by vendor and product ID.
+     */
+    private static final HashMap<Integer, InterfaceInfo> interfaceCache = new HashMap<Integer, InterfaceInfo>();
+
+    private static int modelKey(UsbDevice device) {
+        return (device.getVendorId() << 16) | device.getProductId();
     }
 
     /**
-     * Open the USB device.
+     * Open the USB device on its FIDO interface.
+     *
+     * The interface is found from the descriptors the first time a device model is seen, then
+     * taken from the cache.
      *
      * @param manager The USB manager.
      * @param device  The USB device.
@@ -233,103 +221,170 @@ public class U2FTransportAndroid {
     public static
     @Nullable
     U2FTransportAndroidHID open(UsbManager manager, UsbDevice device) {
-        Log.d(LOG_TAG, "Opening transport. Going through interfaces.");
         // Must only be called once permission is granted (see http://developer.android.com/reference/android/hardware/usb/UsbManager.html)
         // Important if enumerating, rather than being awaken by the intent notification
+        UsbDeviceConnection connection = manager.openDevice(device);
+        if (connection == null) {
+            Log.e(LOG_TAG, "Could not open " + device.getDeviceName());
+            return null;
+        }
+        InterfaceInfo info;
+        synchronized (interfaceCache) {
+            info = interfaceCache.get(modelKey(device));
+        }
+        UsbInterface dongleInterface = null;
+        UsbEndpoint in = null;
+        UsbEndpoint out = null;
+        if (info != null) {
+            Log.d(LOG_TAG, "Using cached FIDO interface " + info.interfaceIndex);
+            if (info.interfaceIndex < device.getInterfaceCount()) {
+                dongleInterface = device.getInterface(info.interfaceIndex);
+                in = findEndpoint(dongleInterface, info.inAddress);
+                out = findEndpoint(dongleInterface, info.outAddress);
+            }
+            if ((in == null) || (out == null)) {
+                Log.d(LOG_TAG, "Cached interface does not match, looking again.");
+                info = null;
+            }
+        }
+        if (info == null) {
+            info = findFidoInterface(connection, device);
+            if (info == null) {
+                Log.d(LOG_TAG, "Not a FIDO device.");
+                connection.close();
+                return null;
+            }
+            if (info.verified) {
+                synchronized (interfaceCache) {
+                    interfaceCache.put(modelKey(device), info);
+                }
+            }
+            dongleInterface = device.getInterface(info.interfaceIndex);
+            in = findEndpoint(dongleInterface, info.inAddress);
+            out = findEndpoint(dongleInterface, info.outAddress);
+        }
+
+        boolean claimed = connection.claimInterface(dongleInterface, true);
+        if (!claimed) {
+            Log.e(LOG_TAG, "Could not claim interface " + dongleInterface.getId());
+            connection.close();
+            return null;
+        }
+        U2FTransportAndroidHID transport = new U2FTransportAndroidHID(connection, dongleInterface, in, out,
+                info.inReportSize, info.outReportSize, TIMEOUT);
+        try {
+            transport.openRequests();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not open USB requests.", e);
+            connection.releaseInterface(dongleInterface);
+            connection.close();
+            return null;
+        }
+        return transport;
+    }
+
+    /**
+     * Look for a HID interface with an IN and an OUT endpoint whose report descriptor has the
+     * FIDO usage page and usage.
+     *
+     * Each candidate is claimed before its report descriptor is requested: the request is
+     * addressed to the interface, and fails while the kernel HID driver holds it. If no report
+     * descriptor can be read, the first candidate is taken, as before descriptors were checked.
+     * The FIDO interface is left claimed, the others are released.
+     *
+     * @return The interface, or NULL if the device has none.
+     */
+    private static
+    @Nullable
+    InterfaceInfo findFidoInterface(UsbDeviceConnection connection, UsbDevice device) {
+        byte[] raw = connection.getRawDescriptors();
+        InterfaceInfo unverified = null;
         for (int interfaceIndex = 0; interfaceIndex < device.getInterfaceCount(); interfaceIndex++) {
-            UsbInterface dongleInterface = device.getInterface(interfaceIndex);
-            Log.d(LOG_TAG, "Interface: " + dongleInterface.getId());
+            UsbInterface candidate = device.getInterface(interfaceIndex);
+            if (candidate.getInterfaceClass() != UsbConstants.USB_CLASS_HID) {
+                continue;
+            }
             UsbEndpoint in = null;
             UsbEndpoint out = null;
-            // go through each interface endpoint
-            for (int i = 0; i < dongleInterface.getEndpointCount(); i++) {
-                UsbEndpoint tmpEndpoint = dongleInterface.getEndpoint(i);
-                if (tmpEndpoint.getDirection() == UsbConstants.USB_DIR_IN) {
-                    Log.d(LOG_TAG, "Found IN endpoint on " + tmpEndpoint.getEndpointNumber());
-                    in = tmpEndpoint;
+            for (int i = 0; i < candidate.getEndpointCount(); i++) {
+                UsbEndpoint endpoint = candidate.getEndpoint(i);
+                if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                    in = endpoint;
                 } else {
-                    Log.d(LOG_TAG, "Found OUT endpoint on " + tmpEndpoint.getEndpointNumber());
-                    out = tmpEndpoint;
+                    out = endpoint;
                 }
             }
-
             // need both in and out
-            if (in == null || out == null) { continue; }
-
-//            if (in == null) {
-//                Log.d(LOG_TAG, "Could not find IN endpoint.");
-//            }
-//            if (out == null) {
-//                Log.d(LOG_TAG, "Could not find OUT endpoint.");
-//            }
-
-            UsbDeviceConnection connection = manager.openDevice(device);
-            boolean claimed = connection.claimInterface(dongleInterface, true);
-            if (!claimed) {
-                Log.e(LOG_TAG, "Could not claim interface " + dongleInterface.getId());
-                return null;
+            if ((in == null) || (out == null)) {
+                continue;
             }
+            int length = (raw != null ? U2FHIDDescriptors.getReportDescriptorLength(raw, candidate.getId()) : -1);
+            if ((length <= 0) || (length > MAX_REPORT_DESCRIPTOR_SIZE)) {
+                length = MAX_REPORT_DESCRIPTOR_SIZE;
+            }
+            if (!connection.claimInterface(candidate, true)) {
+                Log.d(LOG_TAG, "Could not claim interface " + candidate.getId());
+                continue;
+            }
+            byte[] report = new byte[length];
+            int read = connection.controlTransfer(
+                    UsbConstants.USB_DIR_IN | USB_RECIPIENT_INTERFACE,
+                    USB_REQUEST_GET_DESCRIPTOR,
+                    USB_DT_REPORT << 8,
+                    candidate.getId(),
+                    report, length, DESCRIPTOR_TIMEOUT);
+            if (read <= 0) {
+                Log.d(LOG_TAG, "Could not read the report descriptor of interface " + candidate.getId());
+                if (unverified == null) {
+                    unverified = new InterfaceInfo(interfaceIndex, in.getAddress(), out.getAddress(),
+                            getReportSize(report, 0, true, in), getReportSize(report, 0, false, out), false);
+                }
+            } else if (U2FHIDDescriptors.isFidoReport(report, read)) {
+                int inReportSize = getReportSize(report, read, true, in);
+                int outReportSize = getReportSize(report, read, false, out);
+                Log.d(LOG_TAG, "Found FIDO interface " + candidate.getId() + ", reports " + inReportSize + "/" + outReportSize
+                        + " bytes, interval " + in.getInterval());
+                if (unverified != null) {
+                    connection.releaseInterface(device.getInterface(unverified.interfaceIndex));
+                }
+                return new InterfaceInfo(interfaceIndex, in.getAddress(), out.getAddress(), inReportSize, outReportSize, true);
+            }
+            if ((unverified == null) || (unverified.interfaceIndex != interfaceIndex)) {
+                connection.releaseInterface(candidate);
+            }
+        }
+        if (unverified != null) {
+            Log.d(LOG_TAG, "No report descriptor read, using interface " + unverified.interfaceIndex);
+        }
+        return unverified;
+    }
 
-            // get descriptor from endpoint 0
-
-            // buffer to store descriptor in
-            byte[] descriptor = new byte[256];
-
-            // Z: for some reason, or'ing with LIBUSB_RECEIPIENT_INTERFACE causes
-            // controlTransfer() to throw exception
-//            int requestType = UsbConstants.USB_DIR_IN | LIBUSB_RECIPIENT_INTERFACE;
-//            int request = LIBUSB_REQUEST_GET_DESCRIPTOR;
-//            int value = (LIBUSB_DT_REPORT << 8);
-//
-//            int result = connection.controlTransfer(
-//                    requestType,
-//                    request,
-//                    value,
-//                    interfaceIndex,
-//                    descriptor, descriptor.length, 2000);
-//
-//            if (result < 0) {
-//                Log.e(LOG_TAG, "Error with control transaction.");
-//                return null;
-//            }
-//
-//            Log.d(LOG_TAG, "descriptor: " + bytesToHex(descriptor));
-//            Log.d(LOG_TAG, "getDescriptor: "+bytesToHex(connection.getRawDescriptors()));
-            //Log.d(LOG_TAG, "descriptor: " + new String(descriptor));
-
-            boolean isFidoUsage = getUsage(descriptor) == FIDO_USAGE;
-            boolean isUsagePage = getUsagePage(descriptor) == FIDO_USAGE_PAGE;
-
-            //Log.d(LOG_TAG, "isFidoUsage? " + isFidoUsage + " isUsagePage? " + isUsagePage);
-
-//            if (isFidoUsage && isUsagePage) {
-//                Log.d(LOG_TAG, "Found FIDO device.");
-                return new U2FTransportAndroidHID(connection, dongleInterface, in, out, TIMEOUT);
-//            } else {
-//                Log.d(LOG_TAG, "Not a FIDO device.");
-//                connection.releaseInterface(dongleInterface);
-//                connection.close();
-//            }
-        } // end every interface index loop
+    /**
+     * @return The report size from the report descriptor, else the max packet size of the
+     * endpoint carrying it, else the usual 64 bytes.
+     */
+    private static int getReportSize(byte[] report, int length, boolean input, UsbEndpoint endpoint) {
+        int size = U2FHIDDescriptors.getReportSize(report, length, input);
+        if (size < U2FCommandEncoder.MIN_PACKET_SIZE) {
+            size = endpoint.getMaxPacketSize();
+        }
+        if (size < U2FCommandEncoder.MIN_PACKET_SIZE) {
+            size = DEFAULT_REPORT_SIZE;
+        }
+        return size;
+    }
 
-        Log.d(LOG_TAG, "Could not open a connection to any USB device. Returning NULL.");
+    private static
+    @Nullable
+    UsbEndpoint findEndpoint(UsbInterface dongleInterface, int address) {
+        for (int i = 0; i < dongleInterface.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = dongleInterface.getEndpoint(i);
+            if (endpoint.getAddress() == address) {
+                return endpoint;
+            }
+        }
         return null;
     }
 
-    private static final int FIDO_USAGE = 0x01;
-    private static final int FIDO_USAGE_PAGE = 0xf1d0;
-
     private static final int TIMEOUT = 20000;
-
-    private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
-
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
-    }
 }
@@ -22,143 +22,336 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Random;
-import java.util.Arrays;
 
-public class U2FTransportAndroidHID {
+public class U2FTransportAndroidHID extends U2FTransportHID {
 
     private static final String LOG_TAG = "U2FTransportAndroid";
 
-    private static final byte TAG_INIT = (byte) 0x86;
-    private static final byte TAG_MSG = (byte) 0x83;
-
     private UsbDeviceConnection connection;
     private UsbInterface dongleInterface;
     private UsbEndpoint in;
     private UsbEndpoint out;
-    private U2FHelper helper;
+    private U2FPacketPool writePackets;
+    private ByteBuffer readBuffer;
+    private UsbRequest[] writeRequests;
+    private UsbRequest readRequest;
+    // the read request is queued and not reaped yet
+    private boolean readQueued;
+    // the read request was reaped while waiting for a write, its packet is in the read buffer
+    private boolean readCompleted;
+    // a wait failed, leaving requests in an unknown state
+    private boolean broken;
+    private int writeSlot;
+    private boolean pipelinedWrites = true;
     private int timeout;
-    private byte transferBuffer[];
-    private boolean debug;
-    private Random random;
+    private int pollInterval;
+    private U2FWatchdog watchdog;
 
+    /**
+     * @param inReportSize  The size of the input reports, from the report descriptor or the IN
+     *                      endpoint.
+     * @param outReportSize The size of the output reports, from the report descriptor or the OUT
+     *                      endpoint.
+     */
     public U2FTransportAndroidHID(UsbDeviceConnection connection, UsbInterface dongleInterface,
-                                  UsbEndpoint in, UsbEndpoint out, int timeout) {
+                                  UsbEndpoint in, UsbEndpoint out, int inReportSize, int outReportSize, int timeout) {
+        super(inReportSize, outReportSize);
         this.connection = connection;
         this.dongleInterface = dongleInterface;
         this.in = in;
         this.out = out;
         this.timeout = timeout;
-        transferBuffer = new byte[HID_BUFFER_SIZE];
-        helper = new U2FHelper();
-        random = new Random();
+        pollInterval = (in != null ? getPollInterval(in) : 0);
+        writePackets = new U2FPacketPool(WRITE_RING_SIZE, outPacketSize);
+        readBuffer = ByteBuffer.allocateDirect(inPacketSize);
 
         if (in == null) Log.e(LOG_TAG, "IN endpoint is null!");
         if (out == null) Log.e(LOG_TAG, "OUT endpoint is null!");
     }
 
-    public void init() throws IOException {
-        if (debug) {
-            Log.d(LOG_TAG, "Initializing channel");
+    /**
+     * Create the IN and OUT requests used by every exchange. They live until {@link #close()}.
+     *
+     * @throws IOException If a request could not be initialized.
+     */
+    public void openRequests() throws IOException {
+        writeRequests = createRequests(out, WRITE_RING_SIZE);
+        readRequest = new UsbRequest();
+        if (!readRequest.initialize(connection, in)) {
+            readRequest.close();
+            readRequest = null;
+            closeRequests(writeRequests);
+            writeRequests = null;
+            throw new IOException("Request could not be opened.");
         }
-        byte nonce[] = new byte[8];
-        random.nextBytes(nonce);
-        byte[] response = exchange(TAG_INIT, nonce);
+        watchdog = new U2FWatchdog("U2FTransferWatchdog", new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests();
+            }
+        });
+        watchdog.start();
+    }
 
-        byte[] readNonce = new byte[8];
-        System.arraycopy(response, 0, readNonce, 0, 8);
-        if (!Arrays.equals(nonce, readNonce)) {
-            throw new IOException("Invalid channel initialization");
+    @Override
+    protected void abortTransfer() {
+        cancelRequests();
+    }
+
+    /**
+     * Cancel every queued request, so that a blocked {@link UsbDeviceConnection#requestWait()}
+     * returns. The timed variant of requestWait needs API 26.
+     */
+    private void cancelRequests() {
+        UsbRequest read = readRequest;
+        UsbRequest[] writes = writeRequests;
+        if (read != null) {
+            read.cancel();
         }
-        int channel = ((response[8] & 0xff) << 24) | ((response[9] & 0xff) << 16) | ((response[10] & 0xff) << 8) | (response[11] & 0xff);
-        helper.setChannel(channel);
-        if (debug) {
-            Log.d(LOG_TAG, "New channel " + helper.getChannel());
+        if (writes != null) {
+            for (UsbRequest request : writes) {
+                request.cancel();
+            }
         }
     }
 
-    public byte[] exchange(byte[] command) throws IOException {
-        return exchange(TAG_MSG, command);
+    @Override
+    protected void writePackets() throws IOException {
+        checkBroken();
+        watchdog.arm(getWaitDeadline(timeout));
+        try {
+            if (pipelinedWrites) {
+                writePipelined();
+            } else {
+                writeStopAndWait();
+            }
+        } finally {
+            watchdog.disarm();
+        }
+        checkWatchdog();
     }
 
-    public byte[] exchange(byte tag, byte[] command) throws IOException {
-        ByteArrayOutputStream response = new ByteArrayOutputStream();
-        byte[] responseData = null;
-        int offset = 0;
-        int responseSize;
-        if (debug) {
-            Log.d(LOG_TAG, "=> " + Dump.dump(command));
-        }
-        command = helper.wrapCommandAPDU(tag, command, HID_BUFFER_SIZE);
-        UsbRequest requestWrite = new UsbRequest();
+    /**
+     * Queue every packet of the message across the write ring, and only wait for completions
+     * when the ring is full or the whole message has been queued. Requests on one endpoint
+     * complete in the order they were queued, so packet ordering is kept, and any write
+     * completion is the oldest one pending.
+     */
+    private void writePipelined() throws IOException {
+        int pending = 0;
+        boolean written = false;
         try {
-            if (!requestWrite.initialize(connection, out)) {
-                throw new IOException("Request could not be opened.");
+            while (encoder.hasRemaining()) {
+                if (pending == writeRequests.length) {
+                    awaitWrite();
+                    pending--;
+                }
+                ByteBuffer packet = writePackets.acquire();
+                encoder.encode(packet, outPacketSize);
+                tracePacket(true, packet);
+                if (!writeRequests[writeSlot].queue(packet, outPacketSize)) {
+                    throw new IOException("Could not queue write request.");
+                }
+                writeSlot = (writeSlot + 1) % writeRequests.length;
+                pending++;
+            }
+            while (pending > 0) {
+                awaitWrite();
+                pending--;
             }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
+            written = true;
+        } finally {
+            // reap the requests still queued after a failure, so that they can be queued again,
+            // unless the wait fails and breaks the transport
+            while (!written && (pending > 0) && awaitRequest(false)) {
+                pending--;
+            }
+        }
+    }
+
+    /**
+     * Queue one packet at a time and wait for it to complete before queuing the next one.
+     */
+    private void writeStopAndWait() throws IOException {
+        while (encoder.hasRemaining()) {
+            ByteBuffer packet = writePackets.acquire();
+            encoder.encode(packet, outPacketSize);
+            tracePacket(true, packet);
+            if (!writeRequests[0].queue(packet, outPacketSize)) {
+                throw new IOException("Could not queue write request.");
+            }
+            awaitWrite();
+        }
+    }
+
+    private void awaitWrite() throws IOException {
+        boolean completed = awaitRequest(false);
+        checkAborted();
+        if (!completed) {
+            checkWatchdog();
+            throw new IOException("Write request failed.");
+        }
+    }
+
+    private void checkBroken() throws IOException {
+        if (broken) {
+            throw new IOException("USB requests failed, the device must be reopened.");
+        }
+    }
+
+    private void checkWatchdog() throws U2FTimeoutException {
+        if (watchdog.hasFired()) {
+            throw new U2FTimeoutException("Transfer timed out");
         }
+    }
 
-        // break send data into multiple HID packets
-        while (offset != command.length) {
-            int blockSize = (command.length - offset > HID_BUFFER_SIZE ? HID_BUFFER_SIZE : command.length - offset);
-            System.arraycopy(command, offset, transferBuffer, 0, blockSize);
-            if (debug) {
-                Log.d(LOG_TAG, "wire => " + Dump.dump(transferBuffer));
+    /**
+     * Wait for the read request, or for any write request. Completions come back from every
+     * endpoint of the connection: a read completing while a write is waited for is kept for
+     * {@link #readPacket()}, and a write completing while the read is waited for is one left
+     * over from a failed message.
+     *
+     * A failed wait does not tell which requests are still queued, so every request is cancelled
+     * and the transport is broken: it fails every later transfer, to have its session closed.
+     *
+     * @param read TRUE to wait for the read request, FALSE for a write request.
+     * @return FALSE if the wait failed.
+     */
+    private boolean awaitRequest(boolean read) {
+        while (true) {
+            UsbRequest completed = connection.requestWait();
+            if (completed == null) {
+                broken = true;
+                readQueued = false;
+                readCompleted = false;
+                cancelRequests();
+                return false;
             }
-            if (!requestWrite.queue(ByteBuffer.wrap(transferBuffer), HID_BUFFER_SIZE)) {
-                requestWrite.close();
-                throw new IOException();
+            if (completed == readRequest) {
+                readQueued = false;
+                if (read) {
+                    return true;
+                }
+                readCompleted = true;
+            } else if (!read) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    protected ByteBuffer readPacket() throws IOException {
+        checkBroken();
+        if (!readCompleted) {
+            if (!readQueued) {
+                readBuffer.clear();
+                if (!readRequest.queue(readBuffer, inPacketSize)) {
+                    throw new IOException("Could not queue read request.");
+                }
+                readQueued = true;
             }
-            connection.requestWait();
-            offset += blockSize;
-        }
-        ByteBuffer responseBuffer = ByteBuffer.allocate(HID_BUFFER_SIZE);
-        UsbRequest requestRead = new UsbRequest();
-        if (!requestRead.initialize(connection, in)) {
-            requestRead.close();
-            requestWrite.close();
-            throw new IOException();
-        }
-        while ((responseData = helper.unwrapResponseAPDU(tag, response.toByteArray(), HID_BUFFER_SIZE)) == null) {
-            responseBuffer.clear();
-            if (!requestRead.queue(responseBuffer, HID_BUFFER_SIZE)) {
-                requestRead.close();
-                requestWrite.close();
-                throw new IOException();
+            if (aborted) {
+                // aborted before the request was queued, when there was nothing to cancel yet
+                readRequest.cancel();
             }
-            connection.requestWait();
-            responseBuffer.rewind();
-            responseBuffer.get(transferBuffer, 0, HID_BUFFER_SIZE);
-            if (debug) {
-                Log.d(LOG_TAG, "wire <= " + Dump.dump(transferBuffer));
+            watchdog.arm(getWaitDeadline(timeout));
+            boolean completed = awaitRequest(true);
+            watchdog.disarm();
+            checkAborted();
+            checkWatchdog();
+            if (!completed) {
+                throw new IOException("Read request failed.");
             }
-            response.write(transferBuffer, 0, HID_BUFFER_SIZE);
         }
-        if (debug) {
-            Log.d(LOG_TAG, "<= " + Dump.dump(responseData));
+        readCompleted = false;
+        readBuffer.rewind();
+        return readBuffer;
+    }
+
+    private UsbRequest[] createRequests(UsbEndpoint endpoint, int count) throws IOException {
+        UsbRequest[] requests = new UsbRequest[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = new UsbRequest();
+            if (!requests[i].initialize(connection, endpoint)) {
+                closeRequests(requests);
+                throw new IOException("Request could not be opened.");
+            }
         }
+        return requests;
+    }
 
-        requestWrite.close();
-        requestRead.close();
-        return responseData;
+    private static void closeRequests(@Nullable UsbRequest[] requests) {
+        if (requests == null) {
+            return;
+        }
+        for (UsbRequest request : requests) {
+            if (request != null) {
+                request.close();
+            }
+        }
     }
 
     public void close() throws IOException {
+        if (watchdog != null) {
+            watchdog.shutdown();
+            watchdog = null;
+        }
+        closeRequests(writeRequests);
+        writeRequests = null;
+        if (readRequest != null) {
+            readRequest.close();
+            readRequest = null;
+        }
         connection.releaseInterface(dongleInterface);
         connection.close();
     }
 
+    @Override
+    protected void log(String message) {
+        Log.d(LOG_TAG, message);
+    }
+
+    @Override
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * bInterval is a period of that many 1 ms frames at low and full speed, but a period of
+     * 2^(bInterval-1) 125 us microframes at high speed, and the bus speed is not known. An
+     * interrupt packet over 64 bytes is only possible at high speed; otherwise the shorter of
+     * both readings is taken, so that polls are never held back longer than the device needs.
+     *
+     * @return The polling period of the IN endpoint, in whole milliseconds.
+     */
+    private static int getPollInterval(UsbEndpoint in) {
+        int interval = in.getInterval();
+        if (interval <= 0) {
+            return 0;
+        }
+        int highSpeedMicros = MICROFRAME_MICROS << (Math.min(interval, MAX_HIGH_SPEED_INTERVAL) - 1);
+        if (in.getMaxPacketSize() > MAX_FULL_SPEED_PACKET_SIZE) {
+            return highSpeedMicros / 1000;
+        }
+        return Math.min(interval, highSpeedMicros / 1000);
+    }
 
-    public void setDebug(boolean debugFlag) {
-        this.debug = debugFlag;
+    /**
+     * @param pipelined Whether all packets of a message are queued before waiting for their
+     *                  completion (the default), or each one is waited for in turn.
+     */
+    public void setPipelinedWrites(boolean pipelined) {
+        this.pipelinedWrites = pipelined;
     }
 
-    private static final int HID_BUFFER_SIZE = 64;
+    private static final int MICROFRAME_MICROS = 125;
+    private static final int MAX_HIGH_SPEED_INTERVAL = 16;
+    private static final int MAX_FULL_SPEED_PACKET_SIZE = 64;
+    private static final int WRITE_RING_SIZE = 8;
     private static final int SW1_DATA_AVAILABLE = 0x61;
 }
@@ -0,0 +1,111 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import to.crp.android.u2fbridge.U2FCodec;
+import to.crp.android.u2fbridge.U2FContext;
+import to.crp.android.u2fbridge.U2FRequestProcessor;
+
+/**
+ * Building the AUTHENTICATE APDUs for every key handle of a sign request, as the sign flow does
+ * when it walks the registered keys, and the REGISTER APDU, against the single CTAP2
+ * getAssertion and makeCredential commands that replace them.
+ *
+ * The sign flow builds the template shared by the key handles once per request; signApdus
+ * measures that, and signApdusWithoutTemplate rebuilding it for every key handle as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApduBenchmark {
+
+    @Param({"1", "5", "20", "50"})
+    public int keyHandles;
+
+    private U2FContext sign;
+    private U2FContext register;
+    private byte[] signTemplate;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(0);
+        byte[] challenge = new byte[32];
+        random.nextBytes(challenge);
+        Vector<byte[]> handles = new Vector<byte[]>();
+        for (int i = 0; i < keyHandles; i++) {
+            byte[] keyHandle = new byte[64];
+            random.nextBytes(keyHandle);
+            handles.add(keyHandle);
+        }
+        sign = new U2FContext("https://u2f.example.com", challenge, handles, 1, true);
+        register = new U2FContext("https://u2f.example.com", challenge, null, 1, false);
+        U2FCodec.prepareClientData(sign);
+        U2FCodec.prepareClientData(register);
+        signTemplate = U2FRequestProcessor.createSignTemplate(sign);
+    }
+
+    @Benchmark
+    public void signApdus(Blackhole blackhole) throws Exception {
+        for (byte[] keyHandle : sign.getKeyHandles()) {
+            blackhole.consume(U2FRequestProcessor.createSignApdu(signTemplate, keyHandle,
+                    U2FRequestProcessor.FIDO_P1_SIGN));
+        }
+    }
+
+    @Benchmark
+    public void signApdusWithoutTemplate(Blackhole blackhole) throws Exception {
+        for (byte[] keyHandle : sign.getKeyHandles()) {
+            blackhole.consume(U2FRequestProcessor.createSignApdu(sign, keyHandle));
+        }
+    }
+
+    @Benchmark
+    public byte[] registerApdu() throws Exception {
+        return U2FRequestProcessor.createRegisterApdu(register);
+    }
+
+    @Benchmark
+    public byte[] getAssertionRequest() throws Exception {
+        return U2FRequestProcessor.createGetAssertionRequest(sign);
+    }
+
+    @Benchmark
+    public byte[] makeCredentialRequest() throws Exception {
+        return U2FRequestProcessor.createMakeCredentialRequest(register);
+    }
+}
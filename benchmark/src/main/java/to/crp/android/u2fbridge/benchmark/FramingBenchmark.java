@@ -0,0 +1,108 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import to.crp.android.u2fbridge.U2FCommandEncoder;
+import to.crp.android.u2fbridge.U2FHelper;
+import to.crp.android.u2fbridge.U2FResponseDecoder;
+
+/**
+ * HID framing of whole messages, from a single byte up to the largest message a 64 byte report
+ * can carry, in the usual 64 byte reports and in the 512 byte reports of high speed keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final byte TAG_MSG = (byte) 0x83;
+
+    @Param({"1", "57", "64", "411", "1024", "4096", "7609"})
+    public int size;
+
+    @Param({"64", "512"})
+    public int packetSize;
+
+    private U2FCommandEncoder encoder;
+    private U2FResponseDecoder decoder;
+    private byte[] message;
+    private ByteBuffer packet;
+    private ByteBuffer[] packets;
+
+    @Setup
+    public void setup() {
+        U2FHelper helper = new U2FHelper();
+        helper.setChannel(0x01020304);
+        encoder = new U2FCommandEncoder(helper);
+        decoder = new U2FResponseDecoder(helper);
+        message = new byte[size];
+        new Random(0).nextBytes(message);
+        packet = ByteBuffer.allocateDirect(packetSize);
+
+        ArrayList<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+        encoder.reset(TAG_MSG, message);
+        while (encoder.hasRemaining()) {
+            ByteBuffer next = ByteBuffer.allocateDirect(packetSize);
+            encoder.encode(next, packetSize);
+            encoded.add(next);
+        }
+        packets = encoded.toArray(new ByteBuffer[encoded.size()]);
+    }
+
+    @Benchmark
+    public void wrap(Blackhole blackhole) {
+        encoder.reset(TAG_MSG, message);
+        while (encoder.hasRemaining()) {
+            encoder.encode(packet, packetSize);
+            blackhole.consume(packet);
+        }
+    }
+
+    @Benchmark
+    public byte[] unwrap() throws IOException {
+        decoder.reset(TAG_MSG);
+        for (ByteBuffer next : packets) {
+            if (decoder.feed(next, packetSize)) {
+                break;
+            }
+        }
+        return decoder.getResponse();
+    }
+}
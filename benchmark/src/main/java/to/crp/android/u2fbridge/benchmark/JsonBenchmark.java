@@ -0,0 +1,108 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import to.crp.android.u2fbridge.Base64URL;
+import to.crp.android.u2fbridge.U2FCodec;
+import to.crp.android.u2fbridge.U2FContext;
+
+/**
+ * Request parsing, with as many registered keys as some relying parties send, and client data
+ * and response JSON encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private static final int REGISTERED_KEYS = 50;
+
+    private String signRequest;
+    private U2FContext sign;
+    private U2FContext register;
+    private byte[] signature;
+    private byte[] registration;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        byte[] challenge = new byte[32];
+        random.nextBytes(challenge);
+        byte[] keyHandle = new byte[64];
+        random.nextBytes(keyHandle);
+        Vector<byte[]> handles = new Vector<byte[]>();
+        handles.add(keyHandle);
+        sign = new U2FContext("https://u2f.example.com", challenge, handles, 1, true);
+        sign.setChosenKeyHandle(keyHandle);
+        register = new U2FContext("https://u2f.example.com", challenge, null, 1, false);
+        // user presence, counter, DER signature and status word
+        signature = new byte[1 + 4 + 72 + 2];
+        random.nextBytes(signature);
+        // reserved byte, public key, key handle, attestation certificate, signature and status word
+        registration = new byte[1 + 65 + 1 + 64 + 320 + 72 + 2];
+        random.nextBytes(registration);
+        StringBuilder request = new StringBuilder("{\"type\":\"u2f_sign_request\",\"appId\":\"https://u2f.example.com\","
+                + "\"challenge\":\"" + Base64URL.encode(challenge) + "\",\"requestId\":1,\"timeoutSeconds\":30,"
+                + "\"registeredKeys\":[");
+        byte[] registeredKey = new byte[64];
+        for (int i = 0; i < REGISTERED_KEYS; i++) {
+            random.nextBytes(registeredKey);
+            request.append(i > 0 ? "," : "").append("{\"version\":\"U2F_V2\",\"keyHandle\":\"")
+                    .append(Base64URL.encode(registeredKey)).append("\",\"transports\":[\"usb\"]}");
+        }
+        signRequest = request.append("]}").toString();
+    }
+
+    @Benchmark
+    public U2FContext parseSignRequest() throws Exception {
+        return U2FCodec.parseContext(signRequest);
+    }
+
+    @Benchmark
+    public String clientData() throws Exception {
+        return U2FCodec.createClientData(sign);
+    }
+
+    @Benchmark
+    public String signResponse() throws Exception {
+        return U2FCodec.createResponse(sign, signature);
+    }
+
+    @Benchmark
+    public String registerResponse() throws Exception {
+        return U2FCodec.createResponse(register, registration);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+/**
+ * URL safe base64 without padding or line wrapping, as used by the U2F messages.
+ */
+public class Base64URL {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+        // also accept the standard alphabet
+        VALUES['+'] = 62;
+        VALUES['/'] = 63;
+    }
+
+    public static String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    public static String encode(byte[] data, int offset, int length) {
+        StringBuilder output = new StringBuilder((length * 4 + 2) / 3);
+        encode(data, offset, length, output);
+        return output.toString();
+    }
+
+    /**
+     * Encode, appending to output.
+     */
+    public static void encode(byte[] data, int offset, int length, StringBuilder output) {
+        output.ensureCapacity(output.length() + (length * 4 + 2) / 3);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            output.append(ALPHABET[bits >>> 18]);
+            output.append(ALPHABET[(bits >>> 12) & 0x3f]);
+            output.append(ALPHABET[(bits >>> 6) & 0x3f]);
+            output.append(ALPHABET[bits & 0x3f]);
+        }
+        if (end - i == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            output.append(ALPHABET[bits >>> 18]);
+            output.append(ALPHABET[(bits >>> 12) & 0x3f]);
+        } else if (end - i == 2) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8);
+            output.append(ALPHABET[bits >>> 18]);
+            output.append(ALPHABET[(bits >>> 12) & 0x3f]);
+            output.append(ALPHABET[(bits >>> 6) & 0x3f]);
+        }
+    }
+
+    /**
+     * Decode, ignoring padding and white space.
+     *
+     * @throws IllegalArgumentException If the input holds an invalid character or length.
+     */
+    public static byte[] decode(String data) {
+        return decode(data, 0, data.length());
+    }
+
+    /**
+     * Decode the characters from start to end, ignoring padding and white space.
+     *
+     * @throws IllegalArgumentException If the input holds an invalid character or length.
+     */
+    public static byte[] decode(String data, int start, int end) {
+        byte[] output = new byte[(end - start) * 3 / 4];
+        int out = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = data.charAt(i);
+            if ((c == '=') || (c == ' ') || (c == '\n') || (c == '\r') || (c == '\t')) {
+                continue;
+            }
+            int value = (c < VALUES.length ? VALUES[c] : -1);
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid base64 character");
+            }
+            bits = (bits << 6) | value;
+            count++;
+            if (count == 4) {
+                output[out++] = (byte) (bits >> 16);
+                output[out++] = (byte) (bits >> 8);
+                output[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) {
+            throw new IllegalArgumentException("Invalid base64 length");
+        } else if (count == 2) {
+            output[out++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            output[out++] = (byte) (bits >> 10);
+            output[out++] = (byte) (bits >> 2);
+        }
+        if (out == output.length) {
+            return output;
+        }
+        byte[] result = new byte[out];
+        System.arraycopy(output, 0, result, 0, out);
+        return result;
+    }
+}
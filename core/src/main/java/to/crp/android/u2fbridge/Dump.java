@@ -0,0 +1,118 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import java.nio.ByteBuffer;
+
+public class Dump {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    public static String dump(byte[] buffer, int offset, int length) {
+        char[] result = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int value = buffer[offset + i] & 0xff;
+            result[i * 2] = HEX_DIGITS[value >>> 4];
+            result[i * 2 + 1] = HEX_DIGITS[value & 0x0f];
+        }
+        return new String(result);
+    }
+
+    public static String dump(byte[] buffer) {
+        return dump(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Append the hex dump of a byte range to a reusable builder.
+     */
+    public static StringBuilder dump(byte[] buffer, int offset, int length, StringBuilder output) {
+        output.ensureCapacity(output.length() + length * 2);
+        for (int i = 0; i < length; i++) {
+            int value = buffer[offset + i] & 0xff;
+            output.append(HEX_DIGITS[value >>> 4]);
+            output.append(HEX_DIGITS[value & 0x0f]);
+        }
+        return output;
+    }
+
+    /**
+     * Append the hex dump of a buffer range to a reusable builder. The buffer position is not
+     * changed.
+     */
+    public static StringBuilder dump(ByteBuffer buffer, int offset, int length, StringBuilder output) {
+        output.ensureCapacity(output.length() + length * 2);
+        for (int i = 0; i < length; i++) {
+            int value = buffer.get(offset + i) & 0xff;
+            output.append(HEX_DIGITS[value >>> 4]);
+            output.append(HEX_DIGITS[value & 0x0f]);
+        }
+        return output;
+    }
+
+    /**
+     * Parse hex digits, skipping any other character between bytes.
+     *
+     * @return The bytes, or null if a byte is cut by another character or the end of the string.
+     */
+    public static byte[] hexToBin(String src) {
+        byte[] result = new byte[src.length() / 2];
+        int length = 0;
+        int i = 0;
+        while (i < src.length()) {
+            int high = hexValue(src.charAt(i));
+            if (high < 0) {
+                i++;
+                continue;
+            }
+            if (i + 1 == src.length()) {
+                return null;
+            }
+            int low = hexValue(src.charAt(i + 1));
+            if (low < 0) {
+                return null;
+            }
+            result[length++] = (byte) ((high << 4) | low);
+            i += 2;
+        }
+        if (length == result.length) {
+            return result;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(result, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static int hexValue(char c) {
+        return (c < HEX_VALUES.length ? HEX_VALUES[c] : -1);
+    }
+}
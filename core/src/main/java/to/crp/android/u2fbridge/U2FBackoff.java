@@ -0,0 +1,79 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+/**
+ * Delays between polls of an authenticator waiting for the user to touch it.
+ *
+ * Users mostly touch the key within the first second or two, so polls are closely spaced for a
+ * short phase and then grow geometrically up to a ceiling, which keeps the touch-to-response
+ * latency low for quick touches without keeping the link busy through long waits.
+ */
+public class U2FBackoff {
+
+    private final long shortMillis;
+    private final long shortPhaseMillis;
+    private final long maxMillis;
+    private long waitedMillis;
+    private long delayMillis;
+
+    /**
+     * @param shortMillis      Delay between polls during the short phase.
+     * @param shortPhaseMillis Length of the short phase.
+     * @param maxMillis        Ceiling of the delay once backing off.
+     */
+    public U2FBackoff(long shortMillis, long shortPhaseMillis, long maxMillis) {
+        this.shortMillis = shortMillis;
+        this.shortPhaseMillis = shortPhaseMillis;
+        this.maxMillis = maxMillis;
+        reset();
+    }
+
+    /**
+     * @return A backoff polling every 25 ms for 1.5 s, then backing off up to 200 ms.
+     */
+    public static U2FBackoff adaptive() {
+        return new U2FBackoff(25, 1500, 200);
+    }
+
+    /**
+     * @return A backoff always waiting the same delay.
+     */
+    public static U2FBackoff fixed(long millis) {
+        return new U2FBackoff(millis, 0, millis);
+    }
+
+    /**
+     * Start a new wait.
+     */
+    public void reset() {
+        waitedMillis = 0;
+        delayMillis = shortMillis;
+    }
+
+    /**
+     * @return The delay before the next poll, in milliseconds.
+     */
+    public long nextDelay() {
+        if (waitedMillis >= shortPhaseMillis) {
+            delayMillis = Math.min(maxMillis, delayMillis + (delayMillis >> 1));
+        }
+        waitedMillis += delayMillis;
+        return delayMillis;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.util.List;
+
+/**
+ * The requests carried by one intent: a single sign or register request, or a batch of them run
+ * over the same channel.
+ */
+public class U2FBatch {
+
+    public U2FBatch(int requestId, List<U2FContext> contexts, boolean batch, int timeoutSeconds) {
+        this.requestId = requestId;
+        this.contexts = contexts;
+        this.batch = batch;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public List<U2FContext> getContexts() {
+        return contexts;
+    }
+
+    /**
+     * @return FALSE for a single request, which is answered with a single response.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @return The time the relying party allows for the requests, in seconds, or 0 if unspecified.
+     */
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    private int requestId;
+    private List<U2FContext> contexts;
+    private boolean batch;
+    private int timeoutSeconds;
+}
@@ -0,0 +1,274 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Pull parser over CBOR items in a byte array, reading them in order without building a tree.
+ *
+ * Byte strings are not copied: {@link #nextBytes()} only returns their length and leaves their
+ * content in place at {@link #getValueOffset()}, so that it is copied once, into the response
+ * being built. Only definite lengths are accepted, as CTAP2 requires.
+ */
+public class U2FCborReader {
+
+    public static final int TYPE_UNSIGNED = 0;
+    public static final int TYPE_NEGATIVE = 1;
+    public static final int TYPE_BYTES = 2;
+    public static final int TYPE_TEXT = 3;
+    public static final int TYPE_ARRAY = 4;
+    public static final int TYPE_MAP = 5;
+    public static final int TYPE_TAG = 6;
+    public static final int TYPE_SIMPLE = 7;
+
+    private static final int SIMPLE_FALSE = 20;
+    private static final int SIMPLE_TRUE = 21;
+    private static final int MAX_DEPTH = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+    private int valueOffset;
+
+    /**
+     * @param data   The buffer holding the items.
+     * @param offset Where the first item starts.
+     * @param length The length of the items.
+     */
+    public U2FCborReader(byte[] data, int offset, int length) {
+        this.data = data;
+        position = offset;
+        end = offset + length;
+    }
+
+    public U2FCborReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * @return Whether another item follows.
+     */
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    /**
+     * @return The major type of the next item, one of the TYPE_ constants.
+     */
+    public int peekType() throws IOException {
+        require(1);
+        return (data[position] & 0xff) >> 5;
+    }
+
+    /**
+     * @return The number of key and value pairs of the map that follow.
+     */
+    public int beginMap() throws IOException {
+        return readLength(TYPE_MAP);
+    }
+
+    /**
+     * @return The number of items of the array that follow.
+     */
+    public int beginArray() throws IOException {
+        return readLength(TYPE_ARRAY);
+    }
+
+    /**
+     * Read an unsigned or negative integer.
+     */
+    public long nextLong() throws IOException {
+        int type = peekType();
+        if ((type != TYPE_UNSIGNED) && (type != TYPE_NEGATIVE)) {
+            throw new IOException("Expected an integer, found type " + type);
+        }
+        long argument = readArgument();
+        if (argument < 0) {
+            throw new IOException("Integer out of range");
+        }
+        return (type == TYPE_UNSIGNED ? argument : -1 - argument);
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+            throw new IOException("Integer out of range");
+        }
+        return (int) value;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        require(1);
+        int initial = data[position] & 0xff;
+        if (initial == ((TYPE_SIMPLE << 5) | SIMPLE_TRUE)) {
+            position++;
+            return true;
+        }
+        if (initial == ((TYPE_SIMPLE << 5) | SIMPLE_FALSE)) {
+            position++;
+            return false;
+        }
+        throw new IOException("Expected a boolean");
+    }
+
+    public String nextString() throws IOException {
+        int length = readLength(TYPE_TEXT);
+        require(length);
+        String text = new String(data, position, length, UTF8);
+        position += length;
+        return text;
+    }
+
+    /**
+     * Read a byte string, leaving its content in place.
+     *
+     * @return The length of the content, which starts at {@link #getValueOffset()}.
+     */
+    public int nextBytes() throws IOException {
+        int length = readLength(TYPE_BYTES);
+        require(length);
+        valueOffset = position;
+        position += length;
+        return length;
+    }
+
+    /**
+     * Read a byte string into a new array, for content that must outlive the buffer.
+     */
+    public byte[] nextByteArray() throws IOException {
+        int length = nextBytes();
+        byte[] copy = new byte[length];
+        System.arraycopy(data, valueOffset, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * @return The offset in {@link #getData()} of the content of the last byte string read.
+     */
+    public int getValueOffset() {
+        return valueOffset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return The offset in {@link #getData()} of the next item.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Skip the next item, with everything it contains.
+     */
+    public void skipValue() throws IOException {
+        skipValue(0);
+    }
+
+    private void skipValue(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("CBOR nested too deeply");
+        }
+        int type = peekType();
+        long argument = readArgument();
+        switch (type) {
+            case TYPE_BYTES:
+            case TYPE_TEXT:
+                require(argument);
+                position += (int) argument;
+                break;
+            case TYPE_ARRAY:
+                for (long i = 0; i < argument; i++) {
+                    skipValue(depth + 1);
+                }
+                break;
+            case TYPE_MAP:
+                for (long i = 0; i < argument; i++) {
+                    skipValue(depth + 1);
+                    skipValue(depth + 1);
+                }
+                break;
+            case TYPE_TAG:
+                skipValue(depth + 1);
+                break;
+            default:
+                // integers and simple values have no content after their argument
+                break;
+        }
+    }
+
+    private int readLength(int expectedType) throws IOException {
+        int type = peekType();
+        if (type != expectedType) {
+            throw new IOException("Expected type " + expectedType + ", found type " + type);
+        }
+        long length = readArgument();
+        if ((length < 0) || (length > end - position)) {
+            // every entry takes at least one byte, so a longer length cannot be valid
+            throw new IOException("Invalid CBOR length");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Read the initial byte of an item and its argument. Arguments above Long.MAX_VALUE come out
+     * negative.
+     */
+    private long readArgument() throws IOException {
+        require(1);
+        int info = data[position++] & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        int length;
+        switch (info) {
+            case 24:
+                length = 1;
+                break;
+            case 25:
+                length = 2;
+                break;
+            case 26:
+                length = 4;
+                break;
+            case 27:
+                length = 8;
+                break;
+            default:
+                throw new IOException("Unsupported CBOR argument " + info);
+        }
+        require(length);
+        long argument = 0;
+        for (int i = 0; i < length; i++) {
+            argument = (argument << 8) | (data[position++] & 0xff);
+        }
+        return argument;
+    }
+
+    private void require(long length) throws IOException {
+        if (length > end - position) {
+            throw new IOException("Truncated CBOR");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.nio.charset.Charset;
+
+/**
+ * Writes CBOR items into a single buffer, in the order they are given.
+ *
+ * Maps and arrays are written with their size up front, as CTAP2 only accepts definite lengths,
+ * and their entries must be given in the canonical order CTAP2 requires. Byte strings are copied
+ * once, straight from the caller's array.
+ */
+public class U2FCborWriter {
+
+    private static final int TYPE_UNSIGNED = 0;
+    private static final int TYPE_NEGATIVE = 1;
+    private static final int TYPE_BYTES = 2;
+    private static final int TYPE_TEXT = 3;
+    private static final int TYPE_ARRAY = 4;
+    private static final int TYPE_MAP = 5;
+
+    private static final int SIMPLE_FALSE = 0xf4;
+    private static final int SIMPLE_TRUE = 0xf5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int size;
+
+    public U2FCborWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Write a byte outside of any item, such as the CTAP2 command preceding its parameters.
+     */
+    public U2FCborWriter raw(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * @param entries The number of key and value pairs that follow.
+     */
+    public U2FCborWriter beginMap(int entries) {
+        header(TYPE_MAP, entries);
+        return this;
+    }
+
+    /**
+     * @param items The number of items that follow.
+     */
+    public U2FCborWriter beginArray(int items) {
+        header(TYPE_ARRAY, items);
+        return this;
+    }
+
+    public U2FCborWriter value(long value) {
+        if (value >= 0) {
+            header(TYPE_UNSIGNED, value);
+        } else {
+            header(TYPE_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    public U2FCborWriter value(boolean value) {
+        return raw(value ? SIMPLE_TRUE : SIMPLE_FALSE);
+    }
+
+    /**
+     * Write a text string, encoded straight into the buffer when it is ASCII.
+     */
+    public U2FCborWriter value(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                byte[] encoded = text.getBytes(UTF8);
+                header(TYPE_TEXT, encoded.length);
+                append(encoded, 0, encoded.length);
+                return this;
+            }
+        }
+        header(TYPE_TEXT, length);
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    public U2FCborWriter value(byte[] data, int offset, int length) {
+        header(TYPE_BYTES, length);
+        append(data, offset, length);
+        return this;
+    }
+
+    public U2FCborWriter value(byte[] data) {
+        return value(data, 0, data.length);
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[size];
+        System.arraycopy(buffer, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Drop everything written, keeping the buffer for the next items.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    private void header(int type, long argument) {
+        int initial = type << 5;
+        if (argument < 24) {
+            raw(initial | (int) argument);
+        } else if (argument < 0x100) {
+            raw(initial | 24);
+            raw((int) argument);
+        } else if (argument < 0x10000) {
+            raw(initial | 25);
+            putBigEndian(argument, 2);
+        } else if (argument < 0x100000000L) {
+            raw(initial | 26);
+            putBigEndian(argument, 4);
+        } else {
+            raw(initial | 27);
+            putBigEndian(argument, 8);
+        }
+    }
+
+    private void putBigEndian(long value, int length) {
+        ensure(length);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer[size++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, buffer, size, length);
+        size += length;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import org.json.JSONException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Parses U2F requests and encodes client data and U2F responses.
+ *
+ * Requests are read and responses written in a single pass with {@link U2FJsonReader} and
+ * {@link U2FJsonWriter}, without building a JSON tree.
+ */
+public class U2FCodec {
+
+    private static final String TAG_JSON_TYPE = "type";
+    private static final String TAG_JSON_APPID = "appId";
+    private static final String TAG_JSON_CHALLENGE = "challenge";
+    private static final String TAG_JSON_REGISTERED_KEYS = "registeredKeys";
+    private static final String TAG_JSON_REGISTER_REQUESTS = "registerRequests";
+    private static final String TAG_JSON_KEYHANDLE = "keyHandle";
+    private static final String TAG_JSON_VERSION = "version";
+    private static final String TAG_JSON_REQUESTID = "requestId";
+    private static final String TAG_JSON_RESPONSEDATA = "responseData";
+    private static final String TAG_JSON_CLIENTDATA = "clientData";
+    private static final String TAG_JSON_SIGNATUREDATA = "signatureData";
+    private static final String TAG_JSON_REGISTRATIONDATA = "registrationData";
+    private static final String TAG_JSON_TYP = "typ";
+    private static final String TAG_JSON_ORIGIN = "origin";
+    private static final String TAG_JSON_CID_PUBKEY = "cid_pubkey";
+    private static final String TAG_JSON_REQUESTS = "requests";
+    private static final String TAG_JSON_RESPONSES = "responses";
+    private static final String TAG_JSON_ERRORCODE = "errorCode";
+    private static final String TAG_JSON_TIMEOUT_SECONDS = "timeoutSeconds";
+
+    private static final String SIGN_REQUEST_TYPE = "u2f_sign_request";
+    private static final String SIGN_RESPONSE_TYPE = "u2f_sign_response";
+    private static final String SIGN_RESPONSE_TYP = "navigator.id.getAssertion";
+    private static final String REGISTER_REQUEST_TYPE = "u2f_register_request";
+    private static final String REGISTER_RESPONSE_TYPE = "u2f_register_response";
+    private static final String REGISTER_RESPONSE_TYP = "navigator.id.finishEnrollment";
+    private static final String BATCH_REQUEST_TYPE = "u2f_batch_request";
+    private static final String BATCH_RESPONSE_TYPE = "u2f_batch_response";
+    private static final String CID_UNAVAILABLE = "unavailable";
+
+    private static final int ERROR_OTHER = 1;
+
+    private static final String VERSION_U2F_V2 = "U2F_V2";
+
+    /**
+     * The members of a request object, which may come in any order.
+     */
+    private static class Request {
+        String type;
+        String appId;
+        byte[] challenge;
+        int requestId;
+        boolean hasRequestId;
+        Vector<byte[]> keyHandles;
+        boolean hasRegisterRequests;
+        byte[] registerChallenge;
+        List<U2FContext> requests;
+        int timeoutSeconds;
+    }
+
+    /**
+     * @param data The JSON request.
+     * @return The parsed request.
+     * @throws JSONException On parse error, invalid request type or invalid version.
+     */
+    public static U2FContext parseContext(String data) throws JSONException {
+        return toContext(readRequest(new U2FJsonReader(data), false));
+    }
+
+    /**
+     * Parse a single sign or register request, or a batch request carrying an array of them in
+     * "requests".
+     *
+     * @param data The JSON request.
+     * @return The parsed requests.
+     * @throws JSONException On parse error, invalid request type or invalid version.
+     */
+    public static U2FBatch parseBatch(String data) throws JSONException {
+        Request request = readRequest(new U2FJsonReader(data), true);
+        if (!BATCH_REQUEST_TYPE.equals(request.type)) {
+            U2FContext context = toContext(request);
+            return new U2FBatch(context.getRequestId(), Collections.singletonList(context), false,
+                    request.timeoutSeconds);
+        }
+        if ((request.requests == null) || !request.hasRequestId) {
+            throw new JSONException("Missing batch member");
+        }
+        return new U2FBatch(request.requestId, request.requests, true, request.timeoutSeconds);
+    }
+
+    private static Request readRequest(U2FJsonReader reader, boolean batch) throws JSONException {
+        Request request = new Request();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(TAG_JSON_TYPE)) {
+                request.type = reader.nextString();
+            } else if (name.equals(TAG_JSON_APPID)) {
+                request.appId = reader.nextString();
+            } else if (name.equals(TAG_JSON_CHALLENGE)) {
+                request.challenge = reader.nextBase64();
+            } else if (name.equals(TAG_JSON_REQUESTID)) {
+                request.requestId = reader.nextInt();
+                request.hasRequestId = true;
+            } else if (name.equals(TAG_JSON_TIMEOUT_SECONDS)) {
+                request.timeoutSeconds = Math.max(0, reader.nextInt());
+            } else if (name.equals(TAG_JSON_REGISTERED_KEYS)) {
+                request.keyHandles = readRegisteredKeys(reader);
+            } else if (name.equals(TAG_JSON_REGISTER_REQUESTS)) {
+                request.registerChallenge = readRegisterRequests(reader);
+                request.hasRegisterRequests = true;
+            } else if (batch && name.equals(TAG_JSON_REQUESTS)) {
+                request.requests = new ArrayList<U2FContext>();
+                reader.beginArray();
+                int itemTimeout = 0;
+                while (reader.hasNext()) {
+                    Request item = readRequest(reader, false);
+                    itemTimeout = Math.max(itemTimeout, item.timeoutSeconds);
+                    request.requests.add(toContext(item));
+                }
+                if (request.timeoutSeconds == 0) {
+                    request.timeoutSeconds = itemTimeout;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return request;
+    }
+
+    private static Vector<byte[]> readRegisteredKeys(U2FJsonReader reader) throws JSONException {
+        Vector<byte[]> keyHandles = new Vector<byte[]>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String version = null;
+            byte[] keyHandle = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(TAG_JSON_VERSION)) {
+                    version = reader.nextString();
+                } else if (name.equals(TAG_JSON_KEYHANDLE)) {
+                    keyHandle = reader.nextBase64();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!VERSION_U2F_V2.equals(version)) {
+                throw new JSONException("Invalid handle version");
+            }
+            if (keyHandle == null) {
+                throw new JSONException("Missing key handle");
+            }
+            keyHandles.add(keyHandle);
+        }
+        reader.endArray();
+        return keyHandles;
+    }
+
+    /**
+     * Note: Does not support multiple register requests.
+     *
+     * @return The challenge of the last register request.
+     */
+    private static byte[] readRegisterRequests(U2FJsonReader reader) throws JSONException {
+        byte[] challenge = null;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            // TODO : only handle USB transport if several are present
+            String version = null;
+            byte[] itemChallenge = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(TAG_JSON_VERSION)) {
+                    version = reader.nextString();
+                } else if (name.equals(TAG_JSON_CHALLENGE)) {
+                    itemChallenge = reader.nextBase64();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!VERSION_U2F_V2.equals(version)) {
+                throw new JSONException("Invalid register version");
+            }
+            if (itemChallenge == null) {
+                throw new JSONException("Missing challenge");
+            }
+            challenge = itemChallenge;
+        }
+        reader.endArray();
+        return challenge;
+    }
+
+    private static U2FContext toContext(Request request) throws JSONException {
+        if ((request.type == null) || (request.appId == null) || !request.hasRequestId) {
+            throw new JSONException("Missing request member");
+        }
+        if (request.type.equals(SIGN_REQUEST_TYPE)) {
+            if ((request.challenge == null) || (request.keyHandles == null)) {
+                throw new JSONException("Missing sign request member");
+            }
+            return new U2FContext(request.appId, request.challenge, request.keyHandles, request.requestId, true);
+        } else if (request.type.equals(REGISTER_REQUEST_TYPE)) {
+            if (!request.hasRegisterRequests) {
+                throw new JSONException("Missing register requests");
+            }
+            return new U2FContext(request.appId, request.registerChallenge, null, request.requestId, false);
+        } else {
+            throw new JSONException("Invalid request type");
+        }
+    }
+
+    /**
+     * Creates the client data for a sign or register
+     *
+     * @param context
+     * @return The client data JSON
+     * @throws JSONException
+     */
+    public static String createClientData(U2FContext context) throws JSONException {
+        U2FJsonWriter writer = new U2FJsonWriter(192 + context.getAppId().length());
+        writer.beginObject();
+        writer.name(TAG_JSON_TYP).value(context.isSign() ? SIGN_RESPONSE_TYP : REGISTER_RESPONSE_TYP);
+        writer.name(TAG_JSON_CHALLENGE).base64Value(context.getChallenge());
+        writer.name(TAG_JSON_ORIGIN).value(context.getAppId());
+        writer.name(TAG_JSON_CID_PUBKEY).value(CID_UNAVAILABLE);
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /**
+     * Set the client data of the request, unless already set.
+     *
+     * @param context The request.
+     * @throws JSONException
+     */
+    public static void prepareClientData(U2FContext context) throws JSONException {
+        if (context.getClientData() == null) {
+            context.setClientData(utf8(createClientData(context)));
+        }
+    }
+
+    /**
+     * @param context The request.
+     * @param data    The authenticator response, including the status word.
+     * @return The JSON response
+     * @throws JSONException
+     */
+    public static String createResponse(U2FContext context, byte[] data) throws JSONException {
+        prepareClientData(context);
+        U2FJsonWriter writer = new U2FJsonWriter(estimateResponseLength(context, data));
+        writeResponse(writer, context, data);
+        return writer.toString();
+    }
+
+    /**
+     * @param batch     The requests.
+     * @param responses The authenticator response to each request, NULL where it failed.
+     * @return The JSON response: for a single request its response, or NULL if it failed; for a
+     * batch an array with the response to each request, or an error code where it failed.
+     * @throws JSONException
+     */
+    public static String createBatchResponse(U2FBatch batch, byte[][] responses) throws JSONException {
+        List<U2FContext> contexts = batch.getContexts();
+        if (!batch.isBatch()) {
+            return (responses[0] != null ? createResponse(contexts.get(0), responses[0]) : null);
+        }
+        int capacity = 64;
+        for (int i = 0; i < contexts.size(); i++) {
+            if (responses[i] != null) {
+                prepareClientData(contexts.get(i));
+                capacity += estimateResponseLength(contexts.get(i), responses[i]);
+            } else {
+                capacity += 96;
+            }
+        }
+        U2FJsonWriter writer = new U2FJsonWriter(capacity);
+        writer.beginObject();
+        writer.name(TAG_JSON_TYPE).value(BATCH_RESPONSE_TYPE);
+        writer.name(TAG_JSON_REQUESTID).value(batch.getRequestId());
+        writer.name(TAG_JSON_RESPONSES).beginArray();
+        for (int i = 0; i < contexts.size(); i++) {
+            U2FContext context = contexts.get(i);
+            if (responses[i] != null) {
+                writeResponse(writer, context, responses[i]);
+            } else {
+                writer.beginObject();
+                writer.name(TAG_JSON_TYPE).value(context.isSign() ? SIGN_RESPONSE_TYPE : REGISTER_RESPONSE_TYPE);
+                writer.name(TAG_JSON_REQUESTID).value(context.getRequestId());
+                writer.name(TAG_JSON_RESPONSEDATA).beginObject();
+                writer.name(TAG_JSON_ERRORCODE).value(ERROR_OTHER);
+                writer.endObject();
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /**
+     * @return The length of the response JSON, slightly over: base64 grows data by a third.
+     */
+    private static int estimateResponseLength(U2FContext context, byte[] data) {
+        int binary = data.length + context.getClientData().length
+                + (context.isSign() ? context.getChosenKeyHandle().length : 0);
+        return 160 + (binary * 4 + 2) / 3;
+    }
+
+    private static void writeResponse(U2FJsonWriter writer, U2FContext context, byte[] data) {
+        writer.beginObject();
+        writer.name(TAG_JSON_TYPE).value(context.isSign() ? SIGN_RESPONSE_TYPE : REGISTER_RESPONSE_TYPE);
+        writer.name(TAG_JSON_REQUESTID).value(context.getRequestId());
+        writer.name(TAG_JSON_RESPONSEDATA).beginObject();
+        if (context.isSign()) {
+            writer.name(TAG_JSON_KEYHANDLE).base64Value(context.getChosenKeyHandle());
+            writer.name(TAG_JSON_SIGNATUREDATA).base64Value(data, 0, data.length - 2);
+        } else {
+            writer.name(TAG_JSON_REGISTRATIONDATA).base64Value(data, 0, data.length - 2);
+            writer.name(TAG_JSON_VERSION).value(VERSION_U2F_V2);
+        }
+        writer.name(TAG_JSON_CLIENTDATA).base64Value(context.getClientData());
+        writer.endObject();
+        writer.endObject();
+    }
+
+    static byte[] utf8(String data) {
+        try {
+            return data.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a command into HID packets, writing the initialization and continuation headers and the
+ * payload straight into caller supplied packet buffers. Nothing is allocated per packet.
+ */
+public class U2FCommandEncoder {
+
+    private static final int INIT_HEADER_SIZE = 7;
+    private static final int CONT_HEADER_SIZE = 5;
+    private static final int SEQUENCE_COUNT = 0x80;
+
+    /**
+     * The smallest report the framing works with: an initialization header and one byte.
+     */
+    public static final int MIN_PACKET_SIZE = INIT_HEADER_SIZE + 1;
+
+    private final U2FHelper helper;
+    private byte tag;
+    private byte[] command;
+    private int offset;
+    private int sequenceIdx;
+    private boolean started;
+
+    public U2FCommandEncoder(U2FHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * @param packetSize The HID report size.
+     * @return The longest message framed in reports of that size: an initialization packet and
+     * 128 continuation packets, within the 16 bit length field.
+     */
+    public static int getMaxMessageLength(int packetSize) {
+        return Math.min(0xffff, (packetSize - INIT_HEADER_SIZE) + SEQUENCE_COUNT * (packetSize - CONT_HEADER_SIZE));
+    }
+
+    /**
+     * Prepare to encode a new command.
+     *
+     * @param tag     The command tag.
+     * @param command The command payload.
+     */
+    public void reset(byte tag, byte[] command) {
+        this.tag = tag;
+        this.command = command;
+        offset = 0;
+        sequenceIdx = 0;
+        started = false;
+    }
+
+    /**
+     * @return Whether another packet must be encoded to send the whole command.
+     */
+    public boolean hasRemaining() {
+        return !started || (offset != command.length);
+    }
+
+    /**
+     * Write the next packet, zero padded to packetSize. On return the buffer position is 0 and
+     * its limit is packetSize.
+     *
+     * @param packet     A buffer of at least packetSize bytes.
+     * @param packetSize The HID report size.
+     */
+    public void encode(ByteBuffer packet, int packetSize) {
+        int blockSize;
+        packet.clear();
+        packet.putInt(helper.getChannel());
+        if (!started) {
+            packet.put(tag);
+            packet.put((byte) (command.length >> 8));
+            packet.put((byte) command.length);
+            blockSize = Math.min(command.length, packetSize - INIT_HEADER_SIZE);
+            started = true;
+        } else {
+            packet.put((byte) sequenceIdx);
+            sequenceIdx++;
+            blockSize = Math.min(command.length - offset, packetSize - CONT_HEADER_SIZE);
+        }
+        packet.put(command, offset, blockSize);
+        offset += blockSize;
+        while (packet.position() < packetSize) {
+            packet.put((byte) 0);
+        }
+        packet.flip();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.util.Vector;
+
+/**
+ * A parsed U2F sign or register request.
+ */
+public class U2FContext {
+
+    public U2FContext(String appId, byte[] challenge, Vector<byte[]> keyHandles, int requestId, boolean sign) {
+        this.appId = appId;
+        this.challenge = challenge;
+        this.keyHandles = keyHandles;
+        this.requestId = requestId;
+        this.sign = sign;
+    }
+
+    /**
+     * A copy of the request for another flow, sharing its client data and hashes but not its
+     * chosen key handle.
+     */
+    public U2FContext(U2FContext context) {
+        this(context.appId, context.challenge, context.keyHandles, context.requestId, context.sign);
+        this.clientData = context.clientData;
+        this.challengeParameter = context.challengeParameter;
+        this.applicationParameter = context.applicationParameter;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public byte[] getChallenge() {
+        return challenge;
+    }
+
+    /**
+     * Set the client data the request covers, and hash it along with the application id once for
+     * every APDU built from this request.
+     *
+     * @param clientData The client data JSON, as sent with the response.
+     */
+    public void setClientData(byte[] clientData) {
+        this.clientData = clientData;
+        this.challengeParameter = U2FDigest.sha256(clientData);
+        this.applicationParameter = U2FDigest.applicationParameter(appId);
+    }
+
+    /**
+     * @return The client data, or NULL if not set yet.
+     */
+    public byte[] getClientData() {
+        return clientData;
+    }
+
+    /**
+     * @return The SHA-256 of the client data.
+     */
+    public byte[] getChallengeParameter() {
+        return challengeParameter;
+    }
+
+    /**
+     * @return The SHA-256 of the application id.
+     */
+    public byte[] getApplicationParameter() {
+        return applicationParameter;
+    }
+
+    public Vector<byte[]> getKeyHandles() {
+        return keyHandles;
+    }
+
+    public void setChosenKeyHandle(byte[] chosenKeyHandle) {
+        this.chosenKeyHandle = chosenKeyHandle;
+    }
+
+    public byte[] getChosenKeyHandle() {
+        return chosenKeyHandle;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public boolean isSign() {
+        return sign;
+    }
+
+    private String appId;
+    private byte[] challenge;
+    private Vector<byte[]> keyHandles;
+    private byte[] chosenKeyHandle;
+    private byte[] clientData;
+    private byte[] challengeParameter;
+    private byte[] applicationParameter;
+    private int requestId;
+    private boolean sign;
+}
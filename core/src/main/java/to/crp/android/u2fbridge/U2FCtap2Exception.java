@@ -0,0 +1,65 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+
+/**
+ * The authenticator answered a CTAP2 command with an error status.
+ */
+public class U2FCtap2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int ERR_INVALID_COMMAND = 0x01;
+    public static final int ERR_INVALID_LENGTH = 0x03;
+    public static final int ERR_INVALID_CBOR = 0x12;
+    public static final int ERR_MISSING_PARAMETER = 0x14;
+    public static final int ERR_LIMIT_EXCEEDED = 0x15;
+    public static final int ERR_CREDENTIAL_EXCLUDED = 0x19;
+    public static final int ERR_UNSUPPORTED_ALGORITHM = 0x26;
+    public static final int ERR_OPERATION_DENIED = 0x27;
+    public static final int ERR_KEEPALIVE_CANCEL = 0x2d;
+    public static final int ERR_NO_CREDENTIALS = 0x2e;
+    public static final int ERR_ACTION_TIMEOUT = 0x2f;
+
+    private final int status;
+
+    public U2FCtap2Exception(int status) {
+        super("CTAP2 error 0x" + Integer.toHexString(status));
+        this.status = status;
+    }
+
+    /**
+     * @return The status byte of the response.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return Whether the error answers the request itself, because the user or the authenticator
+     * turned it down, rather than the way it was sent, in which case the U2F commands may still
+     * work.
+     */
+    public boolean isDefinitive() {
+        return (status == ERR_CREDENTIAL_EXCLUDED) || (status == ERR_OPERATION_DENIED)
+                || (status == ERR_KEEPALIVE_CANCEL) || (status == ERR_NO_CREDENTIALS)
+                || (status == ERR_ACTION_TIMEOUT);
+    }
+}
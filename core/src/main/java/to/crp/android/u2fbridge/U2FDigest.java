@@ -0,0 +1,74 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 of the U2F parameters, with the application parameters of the most recent
+ * applications kept across requests.
+ */
+public class U2FDigest {
+
+    private static final int APPLICATION_CACHE_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final Map<String, byte[]> APPLICATIONS = new LinkedHashMap<String, byte[]>(APPLICATION_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > APPLICATION_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @return The SHA-256 of data.
+     */
+    public static byte[] sha256(byte[] data) {
+        return DIGEST.get().digest(data);
+    }
+
+    /**
+     * @param appId The application id.
+     * @return The SHA-256 of the application id, shared between callers and not to be modified.
+     */
+    public static byte[] applicationParameter(String appId) {
+        synchronized (APPLICATIONS) {
+            byte[] parameter = APPLICATIONS.get(appId);
+            if (parameter == null) {
+                parameter = sha256(appId.getBytes(UTF8));
+                APPLICATIONS.put(appId, parameter);
+            }
+            return parameter;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+/**
+ * Parsing of the USB descriptors needed to recognize a FIDO HID interface.
+ */
+public class U2FHIDDescriptors {
+
+    public static final int FIDO_USAGE_PAGE = 0xf1d0;
+    public static final int FIDO_USAGE = 0x01;
+
+    private static final int DT_INTERFACE = 0x04;
+    private static final int DT_HID = 0x21;
+    private static final int DT_REPORT = 0x22;
+
+    private static final int ITEM_USAGE_PAGE = 0x04;
+    private static final int ITEM_USAGE = 0x08;
+    private static final int ITEM_REPORT_SIZE = 0x74;
+    private static final int ITEM_REPORT_COUNT = 0x94;
+    private static final int ITEM_INPUT = 0x80;
+    private static final int ITEM_OUTPUT = 0x90;
+    private static final int ITEM_COLLECTION = 0xa0;
+    private static final int ITEM_LONG = 0xfe;
+
+    private U2FHIDDescriptors() {
+    }
+
+    /**
+     * Find the length of the report descriptor of an interface in the raw device and
+     * configuration descriptors, from the HID class descriptor following the interface.
+     *
+     * @param raw             The raw descriptors, as returned by the USB stack.
+     * @param interfaceNumber The bInterfaceNumber of the interface.
+     * @return The length of the report descriptor, or -1 if the interface has none.
+     */
+    public static int getReportDescriptorLength(byte[] raw, int interfaceNumber) {
+        int currentInterface = -1;
+        int i = 0;
+        while (i + 1 < raw.length) {
+            int length = raw[i] & 0xff;
+            if (length < 2) {
+                break;
+            }
+            int type = raw[i + 1] & 0xff;
+            if ((type == DT_INTERFACE) && (i + 2 < raw.length)) {
+                currentInterface = raw[i + 2] & 0xff;
+            } else if ((type == DT_HID) && (currentInterface == interfaceNumber) && (i + 5 < raw.length)) {
+                int count = raw[i + 5] & 0xff;
+                for (int d = 0; d < count; d++) {
+                    int offset = i + 6 + d * 3;
+                    if ((offset + 2 >= raw.length) || (offset + 2 >= i + length)) {
+                        break;
+                    }
+                    if ((raw[offset] & 0xff) == DT_REPORT) {
+                        return (raw[offset + 1] & 0xff) | ((raw[offset + 2] & 0xff) << 8);
+                    }
+                }
+            }
+            i += length;
+        }
+        return -1;
+    }
+
+    /**
+     * Check that the first top-level collection of a report descriptor is a FIDO one, that is
+     * usage page {@link #FIDO_USAGE_PAGE} and usage {@link #FIDO_USAGE}.
+     *
+     * @param report The report descriptor.
+     * @param length Its length.
+     */
+    public static boolean isFidoReport(byte[] report, int length) {
+        int usagePage = -1;
+        int usage = -1;
+        int i = 0;
+        while (i < length) {
+            int prefix = report[i] & 0xff;
+            if (prefix == ITEM_LONG) {
+                if (i + 1 >= length) {
+                    break;
+                }
+                i += 3 + (report[i + 1] & 0xff);
+                continue;
+            }
+            int size = prefix & 0x03;
+            if (size == 3) {
+                size = 4;
+            }
+            if (i + size >= length) {
+                break;
+            }
+            int value = 0;
+            for (int b = size; b > 0; b--) {
+                value = (value << 8) | (report[i + b] & 0xff);
+            }
+            switch (prefix & 0xfc) {
+                case ITEM_USAGE_PAGE:
+                    usagePage = value;
+                    break;
+                case ITEM_USAGE:
+                    if (usage < 0) {
+                        if (size == 4) {
+                            // extended usage, carrying its own usage page
+                            usagePage = value >>> 16;
+                            value &= 0xffff;
+                        }
+                        usage = value;
+                    }
+                    break;
+                case ITEM_COLLECTION:
+                    return (usagePage == FIDO_USAGE_PAGE) && (usage == FIDO_USAGE);
+                default:
+                    break;
+            }
+            i += 1 + size;
+        }
+        return false;
+    }
+
+    /**
+     * Find the size of the input or output report of a report descriptor, from the report size
+     * and report count in effect at its first Input or Output item.
+     *
+     * @param report The report descriptor.
+     * @param length Its length.
+     * @param input  TRUE for the input report, FALSE for the output report.
+     * @return The report size in bytes, or -1 if the descriptor has no such report.
+     */
+    public static int getReportSize(byte[] report, int length, boolean input) {
+        int reportSize = 0;
+        int reportCount = 0;
+        int i = 0;
+        while (i < length) {
+            int prefix = report[i] & 0xff;
+            if (prefix == ITEM_LONG) {
+                if (i + 1 >= length) {
+                    break;
+                }
+                i += 3 + (report[i + 1] & 0xff);
+                continue;
+            }
+            int size = prefix & 0x03;
+            if (size == 3) {
+                size = 4;
+            }
+            if (i + size >= length) {
+                break;
+            }
+            int value = 0;
+            for (int b = size; b > 0; b--) {
+                value = (value << 8) | (report[i + b] & 0xff);
+            }
+            switch (prefix & 0xfc) {
+                case ITEM_REPORT_SIZE:
+                    reportSize = value;
+                    break;
+                case ITEM_REPORT_COUNT:
+                    reportCount = value;
+                    break;
+                case ITEM_INPUT:
+                    if (input) {
+                        return toBytes(reportSize, reportCount);
+                    }
+                    break;
+                case ITEM_OUTPUT:
+                    if (!input) {
+                        return toBytes(reportSize, reportCount);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            i += 1 + size;
+        }
+        return -1;
+    }
+
+    private static int toBytes(int reportSize, int reportCount) {
+        long bits = (long) reportSize * reportCount;
+        return ((bits <= 0) || (bits > 0xffff * 8) ? -1 : (int) ((bits + 7) / 8));
+    }
+}
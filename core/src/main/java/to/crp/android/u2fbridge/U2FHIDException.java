@@ -0,0 +1,61 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+
+/**
+ * The authenticator answered with a HID ERROR frame.
+ */
+public class U2FHIDException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int ERR_INVALID_CMD = 0x01;
+    public static final int ERR_INVALID_PAR = 0x02;
+    public static final int ERR_INVALID_LEN = 0x03;
+    public static final int ERR_INVALID_SEQ = 0x04;
+    public static final int ERR_MSG_TIMEOUT = 0x05;
+    public static final int ERR_CHANNEL_BUSY = 0x06;
+    public static final int ERR_LOCK_REQUIRED = 0x0a;
+    public static final int ERR_INVALID_CHANNEL = 0x0b;
+    public static final int ERR_OTHER = 0x7f;
+
+    private final int errorCode;
+
+    public U2FHIDException(int errorCode) {
+        super("HID error 0x" + Integer.toHexString(errorCode));
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return The error code carried by the ERROR frame.
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return Whether the error means the channel is busy or out of sync, so that it must be
+     * initialized again.
+     */
+    public boolean isChannelError() {
+        return (errorCode == ERR_INVALID_SEQ) || (errorCode == ERR_CHANNEL_BUSY)
+                || (errorCode == ERR_INVALID_CHANNEL);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+public class U2FHelper {
+
+   public static final int CHANNEL_BROADCAST = 0xffffffff;
+
+   private int channel; 
+
+   public U2FHelper() {
+      channel = CHANNEL_BROADCAST;
+   }
+
+   public int getChannel() {
+      return channel;
+   }
+
+   public void setChannel(int channel) {
+      this.channel = channel;
+   }
+
+}
@@ -0,0 +1,65 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Formats the traffic of a transport as hex lines, reusing a single builder.
+ */
+public abstract class U2FHexTraceSink implements U2FTraceSink {
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    public void packet(boolean out, ByteBuffer packet, int length) {
+        if (!isEnabled()) {
+            return;
+        }
+        line.setLength(0);
+        line.append(out ? "wire => " : "wire <= ");
+        write(Dump.dump(packet, packet.position(), length, line));
+    }
+
+    public void message(boolean out, byte[] data) {
+        if (!isEnabled()) {
+            return;
+        }
+        line.setLength(0);
+        line.append(out ? "=> " : "<= ");
+        write(Dump.dump(data, 0, data.length, line));
+    }
+
+    public void event(String description) {
+        if (isEnabled()) {
+            line.setLength(0);
+            write(line.append(description));
+        }
+    }
+
+    /**
+     * @return Whether lines are currently written anywhere. Nothing is formatted otherwise.
+     */
+    protected boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Write a line. The builder is reused once this returns.
+     */
+    protected abstract void write(StringBuilder line);
+}
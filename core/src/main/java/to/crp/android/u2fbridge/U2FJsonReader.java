@@ -0,0 +1,359 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import org.json.JSONException;
+
+import java.math.BigDecimal;
+
+/**
+ * Pull parser over a JSON document, reading values in document order without building a tree.
+ *
+ * Strings without escapes, such as base64 values, are read in place from the document.
+ *
+ * The grammar is not widened for the sake of speed, as requests come from other apps: members
+ * and elements must be separated by exactly one comma, nothing may follow the root value, and
+ * numbers read as ints must be integral and in range.
+ */
+public class U2FJsonReader {
+
+    private static final int MAX_DEPTH = 32;
+
+    private final String data;
+    private int position;
+    private final StringBuilder unescaped = new StringBuilder();
+    // per open object or array, whether a member was read and a comma must come before the next
+    private final boolean[] separated = new boolean[MAX_DEPTH + 1];
+    private int depth;
+
+    public U2FJsonReader(String data) {
+        this.data = data;
+    }
+
+    public void beginObject() throws JSONException {
+        consume('{');
+        enter();
+    }
+
+    public void endObject() throws JSONException {
+        consume('}');
+        leave();
+    }
+
+    public void beginArray() throws JSONException {
+        consume('[');
+        enter();
+    }
+
+    public void endArray() throws JSONException {
+        consume(']');
+        leave();
+    }
+
+    private void enter() throws JSONException {
+        if (depth == MAX_DEPTH) {
+            throw new JSONException("Nesting too deep at " + position);
+        }
+        separated[++depth] = false;
+    }
+
+    private void leave() throws JSONException {
+        if (--depth == 0) {
+            skipWhitespace();
+            if (position < data.length()) {
+                throw new JSONException("Unexpected content after the root value at " + position);
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if the current object or array has another member, after skipping the
+     * separator before it.
+     */
+    public boolean hasNext() throws JSONException {
+        char c = peek();
+        if ((c == '}') || (c == ']')) {
+            return false;
+        }
+        if (separated[depth]) {
+            if (c != ',') {
+                throw new JSONException("Expected ',' at " + position);
+            }
+            position++;
+            c = peek();
+            if ((c == '}') || (c == ']')) {
+                throw new JSONException("Trailing ',' at " + position);
+            }
+        }
+        separated[depth] = true;
+        return true;
+    }
+
+    /**
+     * @return The name of the next member of the current object.
+     */
+    public String nextName() throws JSONException {
+        String name = nextString();
+        consume(':');
+        return name;
+    }
+
+    public String nextString() throws JSONException {
+        int start = stringStart();
+        int end = stringEnd(start);
+        if (data.charAt(end) == '"') {
+            position = end + 1;
+            return data.substring(start, end);
+        }
+        return unescape(start);
+    }
+
+    /**
+     * Read a base64 string value, decoded straight from the document when it has no escapes.
+     */
+    public byte[] nextBase64() throws JSONException {
+        int start = stringStart();
+        int end = stringEnd(start);
+        try {
+            if (data.charAt(end) == '"') {
+                position = end + 1;
+                return Base64URL.decode(data, start, end);
+            }
+            return Base64URL.decode(unescape(start));
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Invalid base64 value");
+        }
+    }
+
+    /**
+     * Read a number, or a string holding one, as an int.
+     *
+     * @throws JSONException If the number is not integral or out of the int range.
+     */
+    public int nextInt() throws JSONException {
+        if (peek() == '"') {
+            try {
+                return Integer.parseInt(nextString().trim());
+            } catch (NumberFormatException e) {
+                throw new JSONException("Invalid number");
+            }
+        }
+        int start = position;
+        position = numberEnd(start);
+        try {
+            return new BigDecimal(data.substring(start, position)).intValueExact();
+        } catch (ArithmeticException e) {
+            throw new JSONException("Number not an int at " + start);
+        }
+    }
+
+    /**
+     * Skip the next value, including any nested objects and arrays.
+     */
+    public void skipValue() throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            nextString();
+        } else if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else if (c == 't') {
+            consumeLiteral("true");
+        } else if (c == 'f') {
+            consumeLiteral("false");
+        } else if (c == 'n') {
+            consumeLiteral("null");
+        } else {
+            position = numberEnd(position);
+        }
+    }
+
+    private void consumeLiteral(String literal) throws JSONException {
+        if (!data.startsWith(literal, position)) {
+            throw new JSONException("Unexpected character at " + position);
+        }
+        position += literal.length();
+    }
+
+    /**
+     * @return The end of the number starting at start, following the JSON grammar.
+     */
+    private int numberEnd(int start) throws JSONException {
+        int i = start;
+        if (charAt(i) == '-') {
+            i++;
+        }
+        if (charAt(i) == '0') {
+            i++;
+        } else if (isDigit(charAt(i))) {
+            i = digitsEnd(i);
+        } else {
+            throw new JSONException("Invalid number at " + start);
+        }
+        if (charAt(i) == '.') {
+            if (!isDigit(charAt(i + 1))) {
+                throw new JSONException("Invalid number at " + start);
+            }
+            i = digitsEnd(i + 1);
+        }
+        if ((charAt(i) == 'e') || (charAt(i) == 'E')) {
+            i++;
+            if ((charAt(i) == '+') || (charAt(i) == '-')) {
+                i++;
+            }
+            if (!isDigit(charAt(i))) {
+                throw new JSONException("Invalid number at " + start);
+            }
+            i = digitsEnd(i);
+        }
+        return i;
+    }
+
+    private int digitsEnd(int i) {
+        while (isDigit(charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return The character at i, or 0 past the end.
+     */
+    private char charAt(int i) {
+        return (i < data.length() ? data.charAt(i) : 0);
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+    private int stringStart() throws JSONException {
+        consume('"');
+        return position;
+    }
+
+    /**
+     * @return The index of the closing quote, or of the first backslash.
+     */
+    private int stringEnd(int start) throws JSONException {
+        for (int i = start; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                return i;
+            }
+        }
+        throw new JSONException("Unterminated string");
+    }
+
+    private String unescape(int start) throws JSONException {
+        unescaped.setLength(0);
+        int i = start;
+        for (; ; ) {
+            if (i >= data.length()) {
+                throw new JSONException("Unterminated string");
+            }
+            char c = data.charAt(i++);
+            if (c == '"') {
+                break;
+            }
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (i >= data.length()) {
+                throw new JSONException("Unterminated string");
+            }
+            c = data.charAt(i++);
+            switch (c) {
+                case 'b':
+                    unescaped.append('\b');
+                    break;
+                case 'f':
+                    unescaped.append('\f');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > data.length()) {
+                        throw new JSONException("Unterminated string");
+                    }
+                    try {
+                        unescaped.append((char) Integer.parseInt(data.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new JSONException("Invalid escape at " + i);
+                    }
+                    i += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    unescaped.append(c);
+                    break;
+                default:
+                    throw new JSONException("Invalid escape at " + (i - 1));
+            }
+        }
+        position = i;
+        return unescaped.toString();
+    }
+
+    /**
+     * @return The next character that is not white space, without consuming it.
+     */
+    private char peek() throws JSONException {
+        skipWhitespace();
+        if (position >= data.length()) {
+            throw new JSONException("Unexpected end of input");
+        }
+        return data.charAt(position);
+    }
+
+    private void skipWhitespace() {
+        while (position < data.length()) {
+            char c = data.charAt(position);
+            if ((c != ' ') && (c != '\n') && (c != '\r') && (c != '\t')) {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private void consume(char expected) throws JSONException {
+        if (peek() != expected) {
+            throw new JSONException("Expected '" + expected + "' at " + position);
+        }
+        position++;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+/**
+ * Writes a JSON document into a single buffer, in the order the values are given.
+ */
+public class U2FJsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_DEPTH = 8;
+
+    private final StringBuilder out;
+    // whether the object or array at each depth already has a member
+    private final boolean[] started = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public U2FJsonWriter(int capacity) {
+        out = new StringBuilder(capacity);
+    }
+
+    public U2FJsonWriter beginObject() {
+        return open('{');
+    }
+
+    public U2FJsonWriter endObject() {
+        return close('}');
+    }
+
+    public U2FJsonWriter beginArray() {
+        return open('[');
+    }
+
+    public U2FJsonWriter endArray() {
+        return close(']');
+    }
+
+    public U2FJsonWriter name(String name) {
+        separate();
+        quote(name);
+        out.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public U2FJsonWriter value(String value) {
+        separate();
+        quote(value);
+        return this;
+    }
+
+    public U2FJsonWriter value(int value) {
+        separate();
+        out.append(value);
+        return this;
+    }
+
+    /**
+     * Write bytes as a base64url string, encoded straight into the document.
+     */
+    public U2FJsonWriter base64Value(byte[] data, int offset, int length) {
+        separate();
+        out.append('"');
+        Base64URL.encode(data, offset, length, out);
+        out.append('"');
+        return this;
+    }
+
+    public U2FJsonWriter base64Value(byte[] data) {
+        return base64Value(data, 0, data.length);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private U2FJsonWriter open(char c) {
+        separate();
+        out.append(c);
+        started[++depth] = false;
+        return this;
+    }
+
+    private U2FJsonWriter close(char c) {
+        out.append(c);
+        depth--;
+        return this;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (started[depth]) {
+            out.append(',');
+        }
+        started[depth] = true;
+    }
+
+    private void quote(String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}
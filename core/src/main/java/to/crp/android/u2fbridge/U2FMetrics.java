@@ -0,0 +1,131 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide latency histograms of each phase of a request, in microseconds, and counters of
+ * the traffic.
+ *
+ * Recording does not allocate: callers keep the {@link System#nanoTime()} a phase started at
+ * and pass it to {@link #recordSince(Phase, long)} once done.
+ */
+public class U2FMetrics {
+
+    public enum Phase {
+        /** Waiting for an authenticator to be attached. */
+        DEVICE_WAIT,
+        /** Waiting for the user to grant the USB permission. */
+        PERMISSION,
+        /** Opening the USB device and claiming its interface. */
+        OPEN,
+        /** Allocating a CTAPHID channel. */
+        INIT,
+        /** One message and its response. */
+        EXCHANGE,
+        /** From the first sign or register attempt to the response once the user touched. */
+        USER_PRESENCE,
+        /** Encoding the JSON response. */
+        ENCODING
+    }
+
+    public enum Counter {
+        PACKETS_OUT,
+        PACKETS_IN,
+        /** Sign or register attempts answered with "user presence required". */
+        BUSY_RETRIES,
+        /** Messages resent on a new channel after a channel error. */
+        CHANNEL_ERRORS,
+        /** Key handles checked or signed with. */
+        KEY_HANDLES_TRIED
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final U2FMetrics INSTANCE = new U2FMetrics();
+
+    private final U2FHistogram[] histograms = new U2FHistogram[PHASES.length];
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+    private volatile long resetMillis = System.currentTimeMillis();
+
+    U2FMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new U2FHistogram();
+        }
+    }
+
+    public static U2FMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param phase      The phase that just ended.
+     * @param startNanos The {@link System#nanoTime()} it started at.
+     */
+    public void recordSince(Phase phase, long startNanos) {
+        histograms[phase.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public U2FHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public void reset() {
+        for (U2FHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters.set(i, 0);
+        }
+        resetMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return A plain text report of every phase and counter.
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("since ").append((System.currentTimeMillis() - resetMillis) / 1000).append(" s\n");
+        out.append("phase (us): count p50 p90 p99 max mean\n");
+        for (Phase phase : PHASES) {
+            U2FHistogram histogram = histograms[phase.ordinal()];
+            out.append(phase.name().toLowerCase()).append(": ").append(histogram.getCount());
+            if (histogram.getCount() > 0) {
+                out.append(' ').append(histogram.getPercentile(50))
+                        .append(' ').append(histogram.getPercentile(90))
+                        .append(' ').append(histogram.getPercentile(99))
+                        .append(' ').append(histogram.getMax())
+                        .append(' ').append(histogram.getMean());
+            }
+            out.append('\n');
+        }
+        for (Counter counter : COUNTERS) {
+            out.append(counter.name().toLowerCase()).append(": ").append(getCount(counter)).append('\n');
+        }
+        return out.toString();
+    }
+}
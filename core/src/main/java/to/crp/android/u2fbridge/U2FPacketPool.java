@@ -0,0 +1,51 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small ring of direct packet buffers owned by a single transport.
+ * Buffers are handed out in turn and reused once the ring wraps around.
+ */
+public class U2FPacketPool {
+
+    private final ByteBuffer[] packets;
+    private int next;
+
+    public U2FPacketPool(int count, int packetSize) {
+        packets = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = ByteBuffer.allocateDirect(packetSize);
+        }
+    }
+
+    /**
+     * @return The next buffer of the ring.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer packet = packets[next];
+        next = (next + 1) % packets.length;
+        return packet;
+    }
+
+    public int size() {
+        return packets.length;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Replays the first sign or register flow of a recorded transport through
+ * {@link U2FTransportReplay} and reports its latency.
+ *
+ * Arguments: file [stream] [iterations] [timing: realtime | fast]
+ *
+ * The request is rebuilt from the recorded APDUs: a register request if the first is REGISTER,
+ * otherwise a sign request with the key handles of the recorded AUTHENTICATE commands, in the
+ * order they were first sent. "realtime" holds each response back as long as the device took,
+ * "fast" returns it at once and does not sleep between polls, measuring the bridge alone.
+ */
+public class U2FReplayRun {
+
+    private static final int FIDO_INS_REGISTER = 0x01;
+    private static final int FIDO_INS_AUTH = 0x02;
+    private static final int FIDO_P1_CHECK_ONLY = 0x07;
+    private static final int KEY_HANDLE_OFFSET = 7 + 32 + 32;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: U2FReplayRun file [stream] [iterations] [realtime|fast]");
+            System.exit(1);
+        }
+        U2FWireRecording recording = U2FWireRecording.read(new File(args[0]));
+        List<Integer> streams = recording.getStreams();
+        System.out.println("streams: " + streams + ", records: " + recording.getRecords().size());
+        int stream = (args.length > 1 ? Integer.parseInt(args[1]) : streams.get(0));
+        int iterations = (args.length > 2 ? Integer.parseInt(args[2]) : 1);
+        boolean realTime = !(args.length > 3 && "fast".equals(args[3]));
+
+        U2FContext context = createContext(recording.getMessages(stream));
+        if (context == null) {
+            System.err.println("No U2F request recorded on stream " + stream);
+            System.exit(1);
+        }
+        System.out.println((context.isSign() ? "sign, " + context.getKeyHandles().size() + " key handles" : "register"));
+        // the APDUs are not compared with the recorded ones, any client data will do
+        context.setClientData(new byte[0]);
+
+        U2FTransportReplay transport = new U2FTransportReplay(recording, stream);
+        transport.setRealTime(realTime);
+        U2FRequestProcessor processor = new U2FRequestProcessor(transport);
+        if (!realTime) {
+            processor.setPresenceBackoff(U2FBackoff.fixed(0));
+        }
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            transport.rewind();
+            long start = System.nanoTime();
+            if (transport.startsWithInit()) {
+                transport.init();
+            }
+            byte[] response = (context.isSign() ? processor.processSign(context) : processor.processRegister(context));
+            samples[i] = System.nanoTime() - start;
+            if (i == 0) {
+                System.out.println("response: " + (response != null ? Dump.dump(response) : "none"));
+            }
+        }
+        Arrays.sort(samples);
+        System.out.println("replay (" + (realTime ? "realtime" : "fast") + "): p50 "
+                + (samples[iterations / 2] / 1000) + " us, p99 "
+                + (samples[iterations * 99 / 100] / 1000) + " us, max "
+                + (samples[iterations - 1] / 1000) + " us");
+        System.out.print(U2FMetrics.getInstance().dump());
+    }
+
+    private static U2FContext createContext(List<byte[]> messages) {
+        Vector<byte[]> keyHandles = new Vector<byte[]>();
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        boolean signing = false;
+        for (byte[] message : messages) {
+            if (message.length < KEY_HANDLE_OFFSET) {
+                continue;
+            }
+            int ins = message[1] & 0xff;
+            if ((ins == FIDO_INS_REGISTER) && keyHandles.isEmpty()) {
+                return new U2FContext("", new byte[0], null, 0, false);
+            }
+            if ((ins == FIDO_INS_AUTH) && (message.length > KEY_HANDLE_OFFSET)) {
+                boolean checkOnly = (message[2] & 0xff) == FIDO_P1_CHECK_ONLY;
+                if (checkOnly && signing) {
+                    // a check-only sweep after signing starts the next flow
+                    break;
+                }
+                signing |= !checkOnly;
+                int length = message[KEY_HANDLE_OFFSET] & 0xff;
+                if (message.length < KEY_HANDLE_OFFSET + 1 + length) {
+                    continue;
+                }
+                byte[] keyHandle = Arrays.copyOfRange(message, KEY_HANDLE_OFFSET + 1, KEY_HANDLE_OFFSET + 1 + length);
+                if (seen.add(ByteBuffer.wrap(keyHandle))) {
+                    keyHandles.add(keyHandle);
+                }
+            } else if (!keyHandles.isEmpty()) {
+                // the first flow is over
+                break;
+            }
+        }
+        return (keyHandles.isEmpty() ? null : new U2FContext("", new byte[0], keyHandles, 0, true));
+    }
+}
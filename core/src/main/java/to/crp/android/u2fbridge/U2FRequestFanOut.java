@@ -0,0 +1,168 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a sign or register flow on several authenticators at once, each on a thread of a shared
+ * executor.
+ *
+ * The first authenticator to answer successfully, that is the first one the user touches, wins
+ * and the flows on the others are stopped. Each flow works on its own copy of the context, and
+ * only the key handle chosen by the winner is copied back.
+ */
+public class U2FRequestFanOut {
+
+    private final Executor executor;
+    private final List<? extends U2FTransport> transports;
+    private final U2FRequestProcessor[] processors;
+    private final CountDownLatch finished;
+    private final byte[][] responses;
+    private final byte[][] chosenKeyHandles;
+    private final Exception[] failures;
+    private final LinkedBlockingQueue<Integer> done = new LinkedBlockingQueue<Integer>();
+    private volatile boolean stopped;
+    private int winner = -1;
+
+    /**
+     * @param executor   Runs the flows, and must be able to run all of them at once.
+     * @param transports The authenticators.
+     */
+    public U2FRequestFanOut(Executor executor, List<? extends U2FTransport> transports) {
+        this.executor = executor;
+        this.transports = transports;
+        int count = transports.size();
+        processors = new U2FRequestProcessor[count];
+        for (int i = 0; i < count; i++) {
+            processors[i] = new U2FRequestProcessor(transports.get(i));
+        }
+        finished = new CountDownLatch(count);
+        responses = new byte[count][];
+        chosenKeyHandles = new byte[count][];
+        failures = new Exception[count];
+    }
+
+    /**
+     * @param deadlineNanos The {@link System#nanoTime()} every flow must be done by, or 0 for none.
+     */
+    public void setDeadline(long deadlineNanos) {
+        for (U2FRequestProcessor processor : processors) {
+            processor.setDeadline(deadlineNanos);
+        }
+    }
+
+    /**
+     * Stop every flow after its current exchange.
+     */
+    public void markStopped() {
+        stopped = true;
+        for (U2FRequestProcessor processor : processors) {
+            processor.markStopped();
+        }
+    }
+
+    /**
+     * Run the flow of the context on every transport.
+     *
+     * @param context A request whose client data is set.
+     * @return The first successful response, or NULL if every flow failed or was stopped.
+     * @throws InterruptedException If interrupted while waiting, in which case every flow is stopped.
+     */
+    public byte[] process(final U2FContext context) throws InterruptedException {
+        for (int i = 0; i < processors.length; i++) {
+            final int index = i;
+            final U2FContext copy = new U2FContext(context);
+            Runnable flow = new Runnable() {
+                public void run() {
+                    try {
+                        if (copy.isSign()) {
+                            responses[index] = processors[index].processSign(copy);
+                        } else {
+                            responses[index] = processors[index].processRegister(copy);
+                        }
+                        chosenKeyHandles[index] = copy.getChosenKeyHandle();
+                    } catch (Exception e) {
+                        failures[index] = e;
+                    } finally {
+                        done.add(index);
+                        finished.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(flow);
+            } catch (RejectedExecutionException e) {
+                failures[index] = e;
+                done.add(index);
+                finished.countDown();
+            }
+        }
+        try {
+            for (int pending = processors.length; (pending > 0) && !stopped; pending--) {
+                int index = done.take();
+                if (U2FRequestProcessor.isResponseOK(responses[index])) {
+                    winner = index;
+                    markStopped();
+                    context.setChosenKeyHandle(chosenKeyHandles[index]);
+                    return responses[index];
+                }
+            }
+        } catch (InterruptedException e) {
+            markStopped();
+            throw e;
+        }
+        markStopped();
+        return null;
+    }
+
+    /**
+     * Wait for the flows that lost to stop, so that their transports can be used again.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * @return The transport that answered successfully, or NULL if none did.
+     */
+    public U2FTransport getWinner() {
+        return (winner >= 0 ? transports.get(winner) : null);
+    }
+
+    /**
+     * @return The transports whose flow ended with an exception. Only complete after
+     * {@link #awaitTermination()}.
+     */
+    public List<U2FTransport> getFailedTransports() {
+        List<U2FTransport> failed = new ArrayList<U2FTransport>();
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) {
+                failed.add(transports.get(i));
+            }
+        }
+        return failed;
+    }
+}
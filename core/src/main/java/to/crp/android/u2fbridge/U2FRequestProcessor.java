@@ -0,0 +1,766 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the U2F sign and register flows over a transport.
+ *
+ * While the authenticator answers that user presence is required, the command is resent after
+ * the delays of a {@link U2FBackoff}. Authenticators that hold the response and send KEEPALIVE
+ * frames until touched are simply waited on by the transport.
+ *
+ * With a deadline, polling stops with a {@link U2FTimeoutException} as soon as the next poll
+ * would come too late.
+ *
+ * Authenticators announcing CTAP2 support are asked to sign with a single getAssertion over
+ * CTAPHID_CBOR, which they hold until the touch, and whose assertion is the U2F signature of the
+ * request when the relying party id is the application id. Registration stays on the U2F
+ * command, as a CTAP2 attestation can only be turned into a U2F registration in the fido-u2f
+ * format, which the authenticator picks. {@link #processMakeCredential} is there for callers
+ * that can take either.
+ *
+ * A flow stopped from another thread gives up at once: the exchange in progress is aborted or the
+ * wait before the next poll is interrupted, and the authenticator is told to stop waiting for the
+ * user, so that it is free for the next request.
+ */
+public class U2FRequestProcessor {
+
+    private static final int FIDO_CLA = 0x00;
+    private static final int FIDO_INS_AUTH = 0x02;
+    private static final int FIDO_INS_REGISTER = 0x01;
+    public static final int FIDO_P1_SIGN = 0x03;
+    public static final int FIDO_P1_CHECK_ONLY = 0x07;
+
+    private static final int APDU_HEADER_LENGTH = 7;
+    private static final int PARAMETER_LENGTH = 32;
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW_USER_PRESENCE_REQUIRED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6a80;
+
+    private static final int CTAP2_MAKE_CREDENTIAL = 0x01;
+    private static final int CTAP2_GET_ASSERTION = 0x02;
+    private static final int CTAP2_OK = 0x00;
+    private static final int COSE_ALG_ES256 = -7;
+    private static final int COSE_KEY_X = -2;
+    private static final int COSE_KEY_Y = -3;
+    private static final String CREDENTIAL_TYPE = "public-key";
+    private static final String FORMAT_FIDO_U2F = "fido-u2f";
+    // U2F has no user, and credentials that are not resident do not keep it
+    private static final byte[] U2F_USER_ID = {0};
+
+    // rpIdHash, flags and signature counter
+    private static final int AUTH_DATA_LENGTH = 37;
+    private static final int AAGUID_LENGTH = 16;
+    private static final int REGISTER_RESERVED = 0x05;
+
+    private static final int FLOW_SIGN = 0;
+    private static final int FLOW_REGISTER = 1;
+    private static final int FLOW_GET_ASSERTION = 2;
+    private static final int FLOW_MAKE_CREDENTIAL = 3;
+
+    private U2FTransport transport;
+    private U2FBackoff backoff = U2FBackoff.adaptive();
+    private volatile boolean stopped;
+    private boolean cborEnabled = true;
+    private Thread worker;
+    private long deadline;
+    private final U2FMetrics metrics = U2FMetrics.getInstance();
+
+    public U2FRequestProcessor(U2FTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @param backoff Delays between polls while the authenticator waits for the user.
+     */
+    public void setPresenceBackoff(U2FBackoff backoff) {
+        this.backoff = backoff;
+    }
+
+    /**
+     * @param enabled Whether sign requests use CTAP2 on authenticators supporting it, the default.
+     */
+    public void setCborEnabled(boolean enabled) {
+        this.cborEnabled = enabled;
+    }
+
+    /**
+     * @param deadlineNanos The {@link System#nanoTime()} the flow must be done by, or 0 for none.
+     *                      Also set on the transport while a flow runs.
+     */
+    public void setDeadline(long deadlineNanos) {
+        deadline = deadlineNanos;
+    }
+
+    /**
+     * Stop the flow in progress, aborting its current exchange. The flow then returns NULL.
+     */
+    public void markStopped() {
+        stopped = true;
+        transport.abort();
+        synchronized (this) {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run a flow on the calling thread. If it is stopped before an answer, the command the
+     * authenticator may still be waiting on is cancelled, unless the transport already did so
+     * for an aborted exchange.
+     *
+     * The deadline only applies to the transport for the duration of the flow, as the transport
+     * may outlive it and serve the next request.
+     */
+    private byte[] runFlow(U2FContext context, int flow) throws Exception {
+        transport.setDeadline(deadline);
+        try {
+            return runBoundedFlow(context, flow);
+        } finally {
+            transport.setDeadline(0);
+        }
+    }
+
+    private byte[] runBoundedFlow(U2FContext context, int flow) throws Exception {
+        synchronized (this) {
+            worker = Thread.currentThread();
+        }
+        byte[] response = null;
+        boolean cancelled = false;
+        try {
+            switch (flow) {
+                case FLOW_SIGN:
+                    response = sign(context);
+                    break;
+                case FLOW_REGISTER:
+                    response = register(context);
+                    break;
+                case FLOW_GET_ASSERTION:
+                    response = getAssertion(context);
+                    break;
+                default:
+                    response = makeCredential(context);
+                    break;
+            }
+        } catch (U2FTimeoutException e) {
+            throw e;
+        } catch (InterruptedIOException e) {
+            if (!stopped) {
+                throw e;
+            }
+            cancelled = true;
+        } catch (InterruptedException e) {
+            if (!stopped) {
+                throw e;
+            }
+        } finally {
+            synchronized (this) {
+                worker = null;
+                if (stopped) {
+                    // an interrupt from markStopped that came too late to wake up the flow
+                    Thread.interrupted();
+                }
+            }
+        }
+        if (isResponseOK(response)) {
+            return response;
+        }
+        if (stopped) {
+            if (!cancelled) {
+                transport.cancel();
+            }
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Does response indicate no error?
+     * @param response
+     * @return  FALSE if response is NULL or length < 2
+     */
+    public static boolean isResponseOK(byte[] response) {
+        return getStatus(response) == SW_OK;
+    }
+
+    public static boolean isResponseBusy(byte[] response) {
+        return getStatus(response) == SW_USER_PRESENCE_REQUIRED;
+    }
+
+    /**
+     * @return The status word ending response, or -1 if response is NULL or length < 2
+     */
+    private static int getStatus(byte[] response) {
+        if ((response == null) || (response.length < 2)) {
+            return -1;
+        }
+        return ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+    }
+
+    /**
+     * Process sign context.
+     *
+     * On an authenticator supporting CTAP2, this is {@link #processGetAssertion}, unless it
+     * answers with an error about the command rather than the request, or with an assertion that
+     * cannot be made into a U2F signature. Other failures of the getAssertion are thrown.
+     *
+     * Otherwise, every distinct key handle is first probed with a check-only AUTHENTICATE, which answers at
+     * once without waiting for the user, and only the handles the authenticator recognizes are
+     * then signed with. Handles it answers neither way, as some authenticators do not support
+     * check-only, are kept as a fallback after the recognized ones.
+     *
+     * @param context A request whose client data is set.
+     * @return The response of the first key handle accepted by the authenticator, or NULL if
+     * stopped.
+     * @throws Exception
+     */
+    public byte[] processSign(U2FContext context) throws Exception {
+        return runFlow(context, FLOW_SIGN);
+    }
+
+    private byte[] sign(U2FContext context) throws Exception {
+        if (cborEnabled && transport.supportsCbor() && !context.getKeyHandles().isEmpty()) {
+            try {
+                return getAssertion(context);
+            } catch (U2FCtap2Exception e) {
+                if (e.isDefinitive()) {
+                    return null;
+                }
+                // some authenticators reject long allow lists, the U2F commands go one at a time
+            } catch (U2FConversionException e) {
+                // the U2F commands say which key handle signed
+            }
+        }
+        byte[] response = null;
+        byte[] template = createSignTemplate(context);
+        List<byte[]> matching = new ArrayList<byte[]>();
+        List<byte[]> unknown = new ArrayList<byte[]>();
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        for (byte[] keyHandle : context.getKeyHandles()) {
+            if (stopped) {
+                return null;
+            }
+            if (!seen.add(ByteBuffer.wrap(keyHandle))) {
+                continue;
+            }
+            metrics.increment(U2FMetrics.Counter.KEY_HANDLES_TRIED);
+            response = transport.exchange(createSignApdu(template, keyHandle, FIDO_P1_CHECK_ONLY));
+            int sw = getStatus(response);
+            if (sw == SW_USER_PRESENCE_REQUIRED) {
+                matching.add(keyHandle);
+            } else if (sw != SW_WRONG_DATA) {
+                unknown.add(keyHandle);
+            }
+        }
+        matching.addAll(unknown);
+        long presenceStart = System.nanoTime();
+        choiceLoop:
+        for (byte[] keyHandle : matching) {
+            if (stopped) {
+                break;
+            }
+            backoff.reset();
+            byte[] authApdu = createSignApdu(template, keyHandle, FIDO_P1_SIGN);
+            for (; ; ) {
+                if (stopped) {
+                    break;
+                }
+                response = transport.exchange(authApdu);
+                if (isResponseOK(response)) {
+                    metrics.recordSince(U2FMetrics.Phase.USER_PRESENCE, presenceStart);
+                    context.setChosenKeyHandle(keyHandle);
+                    break choiceLoop;
+                }
+                if (!isResponseBusy(response)) {
+                    break;
+                } else {
+                    metrics.increment(U2FMetrics.Counter.BUSY_RETRIES);
+                    response = null;
+                    sleepBeforePoll();
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Process register context.
+     *
+     * @param context A request whose client data is set.
+     * @return  The response to the register request, or NULL if stopped.
+     * @throws Exception
+     */
+    public byte[] processRegister(U2FContext context) throws Exception {
+        return runFlow(context, FLOW_REGISTER);
+    }
+
+    /**
+     * Process sign context with a CTAP2 getAssertion allowing every key handle of the request.
+     * The authenticator picks the key handle and holds the command until the touch.
+     *
+     * @param context A request whose client data is set.
+     * @return The response in the format of a U2F AUTHENTICATE response, or NULL if no key handle
+     * is known to the authenticator or if stopped.
+     * @throws U2FCtap2Exception If the authenticator answers with an error status.
+     * @throws Exception
+     */
+    public byte[] processGetAssertion(U2FContext context) throws Exception {
+        return runFlow(context, FLOW_GET_ASSERTION);
+    }
+
+    /**
+     * Process register context with a CTAP2 makeCredential for an ES256 key.
+     *
+     * @param context A request whose client data is set.
+     * @return The response in the format of a U2F REGISTER response, or NULL if the authenticator
+     * attested the key in another format than fido-u2f, or if stopped.
+     * @throws U2FCtap2Exception If the authenticator answers with an error status.
+     * @throws Exception
+     */
+    public byte[] processMakeCredential(U2FContext context) throws Exception {
+        return runFlow(context, FLOW_MAKE_CREDENTIAL);
+    }
+
+    private byte[] getAssertion(U2FContext context) throws IOException {
+        long presenceStart = System.nanoTime();
+        byte[] response = transport.exchangeCbor(createGetAssertionRequest(context));
+        try {
+            checkCtap2Status(response);
+        } catch (U2FCtap2Exception e) {
+            if (e.getStatus() == U2FCtap2Exception.ERR_NO_CREDENTIALS) {
+                return null;
+            }
+            throw e;
+        }
+        metrics.recordSince(U2FMetrics.Phase.USER_PRESENCE, presenceStart);
+        return toSignResponse(context, response);
+    }
+
+    private byte[] makeCredential(U2FContext context) throws IOException {
+        long presenceStart = System.nanoTime();
+        byte[] response = transport.exchangeCbor(createMakeCredentialRequest(context));
+        checkCtap2Status(response);
+        metrics.recordSince(U2FMetrics.Phase.USER_PRESENCE, presenceStart);
+        return toRegisterResponse(context, response);
+    }
+
+    private static void checkCtap2Status(byte[] response) throws IOException {
+        if (response.length == 0) {
+            throw new IOException("Empty CTAP2 response");
+        }
+        int status = response[0] & 0xff;
+        if (status != CTAP2_OK) {
+            throw new U2FCtap2Exception(status);
+        }
+    }
+
+    /**
+     * Build the CTAP2 getAssertion command of a sign request, allowing every distinct key handle
+     * of the request, with the application id as relying party id so that the assertion is a U2F
+     * signature.
+     *
+     * @param context A request whose client data is set.
+     * @return The command byte and its CBOR parameters.
+     */
+    public static byte[] createGetAssertionRequest(U2FContext context) {
+        checkClientData(context);
+        List<byte[]> keyHandles = new ArrayList<byte[]>();
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        int capacity = 64 + context.getAppId().length();
+        for (byte[] keyHandle : context.getKeyHandles()) {
+            if (seen.add(ByteBuffer.wrap(keyHandle))) {
+                keyHandles.add(keyHandle);
+                capacity += keyHandle.length + 24;
+            }
+        }
+        U2FCborWriter writer = new U2FCborWriter(capacity);
+        writer.raw(CTAP2_GET_ASSERTION).beginMap(3)
+                .value(1).value(context.getAppId())
+                .value(2).value(context.getChallengeParameter())
+                .value(3);
+        writeCredentials(writer, keyHandles);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Build the CTAP2 makeCredential command of a register request, for an ES256 key bound to
+     * the application id.
+     *
+     * @param context A request whose client data is set.
+     * @return The command byte and its CBOR parameters.
+     */
+    public static byte[] createMakeCredentialRequest(U2FContext context) {
+        checkClientData(context);
+        List<byte[]> excluded = (context.getKeyHandles() != null ? context.getKeyHandles() : new ArrayList<byte[]>());
+        U2FCborWriter writer = new U2FCborWriter(160 + 2 * context.getAppId().length());
+        writer.raw(CTAP2_MAKE_CREDENTIAL).beginMap(excluded.isEmpty() ? 4 : 5)
+                .value(1).value(context.getChallengeParameter())
+                .value(2).beginMap(1)
+                .value("id").value(context.getAppId())
+                // some authenticators require a user name, the application id stands in for it
+                .value(3).beginMap(2)
+                .value("id").value(U2F_USER_ID)
+                .value("name").value(context.getAppId())
+                .value(4).beginArray(1).beginMap(2)
+                .value("alg").value(COSE_ALG_ES256)
+                .value("type").value(CREDENTIAL_TYPE);
+        if (!excluded.isEmpty()) {
+            writer.value(5);
+            writeCredentials(writer, excluded);
+        }
+        return writer.toByteArray();
+    }
+
+    private static void writeCredentials(U2FCborWriter writer, List<byte[]> keyHandles) {
+        writer.beginArray(keyHandles.size());
+        for (byte[] keyHandle : keyHandles) {
+            writer.beginMap(2)
+                    .value("id").value(keyHandle)
+                    .value("type").value(CREDENTIAL_TYPE);
+        }
+    }
+
+    /**
+     * Turn a getAssertion response into a U2F AUTHENTICATE response: the flags and counter of the
+     * authenticator data are the user presence and counter of U2F, and the signature covers the
+     * same bytes. Only the parts kept are copied, once, from the response.
+     *
+     * @throws U2FConversionException If the assertion is valid but not a U2F signature.
+     */
+    private static byte[] toSignResponse(U2FContext context, byte[] response) throws IOException {
+        U2FCborReader reader = new U2FCborReader(response, 1, response.length - 1);
+        byte[] keyHandle = null;
+        int authData = -1;
+        int authDataLength = 0;
+        int signature = -1;
+        int signatureLength = 0;
+        for (int entries = reader.beginMap(); entries > 0; entries--) {
+            if (reader.peekType() != U2FCborReader.TYPE_UNSIGNED) {
+                reader.skipValue();
+                reader.skipValue();
+                continue;
+            }
+            switch (reader.nextInt()) {
+                case 1:
+                    keyHandle = readCredentialId(reader);
+                    break;
+                case 2:
+                    authDataLength = reader.nextBytes();
+                    authData = reader.getValueOffset();
+                    break;
+                case 3:
+                    signatureLength = reader.nextBytes();
+                    signature = reader.getValueOffset();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        if ((authData < 0) || (signature < 0)) {
+            throw new IOException("Incomplete assertion");
+        }
+        if (authDataLength != AUTH_DATA_LENGTH) {
+            throw new U2FConversionException("Assertion with extensions, not a U2F signature");
+        }
+        checkApplication(context, response, authData);
+        if (keyHandle == null) {
+            // may only be left out when a single credential was allowed
+            if (context.getKeyHandles().size() != 1) {
+                throw new U2FConversionException("Assertion without its credential");
+            }
+            keyHandle = context.getKeyHandles().get(0);
+        }
+        context.setChosenKeyHandle(keyHandle);
+        byte[] u2f = new byte[AUTH_DATA_LENGTH - PARAMETER_LENGTH + signatureLength + 2];
+        System.arraycopy(response, authData + PARAMETER_LENGTH, u2f, 0, AUTH_DATA_LENGTH - PARAMETER_LENGTH);
+        System.arraycopy(response, signature, u2f, AUTH_DATA_LENGTH - PARAMETER_LENGTH, signatureLength);
+        putStatus(u2f, SW_OK);
+        return u2f;
+    }
+
+    private static byte[] readCredentialId(U2FCborReader reader) throws IOException {
+        byte[] id = null;
+        for (int entries = reader.beginMap(); entries > 0; entries--) {
+            if ((reader.peekType() == U2FCborReader.TYPE_TEXT) && "id".equals(reader.nextString())) {
+                id = reader.nextByteArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Turn a makeCredential response with a fido-u2f attestation into a U2F REGISTER response:
+     * the attestation signature covers the same bytes as the U2F one. The public key is taken
+     * from the COSE key of the attested credential data.
+     *
+     * @return The response, or NULL for another attestation format.
+     */
+    private static byte[] toRegisterResponse(U2FContext context, byte[] response) throws IOException {
+        U2FCborReader reader = new U2FCborReader(response, 1, response.length - 1);
+        String format = null;
+        int authData = -1;
+        int authDataLength = 0;
+        int signature = -1;
+        int signatureLength = 0;
+        int certificate = -1;
+        int certificateLength = 0;
+        for (int entries = reader.beginMap(); entries > 0; entries--) {
+            if (reader.peekType() != U2FCborReader.TYPE_UNSIGNED) {
+                reader.skipValue();
+                reader.skipValue();
+                continue;
+            }
+            switch (reader.nextInt()) {
+                case 1:
+                    format = reader.nextString();
+                    break;
+                case 2:
+                    authDataLength = reader.nextBytes();
+                    authData = reader.getValueOffset();
+                    break;
+                case 3:
+                    for (int fields = reader.beginMap(); fields > 0; fields--) {
+                        String name = (reader.peekType() == U2FCborReader.TYPE_TEXT ? reader.nextString() : null);
+                        if (name == null) {
+                            reader.skipValue();
+                            reader.skipValue();
+                        } else if (name.equals("sig")) {
+                            signatureLength = reader.nextBytes();
+                            signature = reader.getValueOffset();
+                        } else if (name.equals("x5c")) {
+                            // the chain of a fido-u2f attestation has a single certificate
+                            for (int i = reader.beginArray(); i > 0; i--) {
+                                if (certificate < 0) {
+                                    certificateLength = reader.nextBytes();
+                                    certificate = reader.getValueOffset();
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        if (!FORMAT_FIDO_U2F.equals(format)) {
+            return null;
+        }
+        if ((authData < 0) || (signature < 0) || (certificate < 0)) {
+            throw new IOException("Incomplete attestation");
+        }
+        checkApplication(context, response, authData);
+        int credentialData = authData + AUTH_DATA_LENGTH + AAGUID_LENGTH;
+        if (authDataLength < AUTH_DATA_LENGTH + AAGUID_LENGTH + 2) {
+            throw new IOException("No attested credential");
+        }
+        int keyHandleLength = ((response[credentialData] & 0xff) << 8) | (response[credentialData + 1] & 0xff);
+        int keyHandle = credentialData + 2;
+        if ((keyHandleLength > 0xff) || (keyHandle + keyHandleLength > authData + authDataLength)) {
+            throw new IOException("Invalid credential id");
+        }
+        int coseKey = keyHandle + keyHandleLength;
+        U2FCborReader keyReader = new U2FCborReader(response, coseKey, authData + authDataLength - coseKey);
+        int x = -1;
+        int y = -1;
+        for (int entries = keyReader.beginMap(); entries > 0; entries--) {
+            int label = keyReader.nextInt();
+            if ((label == COSE_KEY_X) && (keyReader.nextBytes() == PARAMETER_LENGTH)) {
+                x = keyReader.getValueOffset();
+            } else if ((label == COSE_KEY_Y) && (keyReader.nextBytes() == PARAMETER_LENGTH)) {
+                y = keyReader.getValueOffset();
+            } else if ((label != COSE_KEY_X) && (label != COSE_KEY_Y)) {
+                keyReader.skipValue();
+            }
+        }
+        if ((x < 0) || (y < 0)) {
+            throw new IOException("Not a P-256 credential key");
+        }
+        byte[] u2f = new byte[1 + 1 + 2 * PARAMETER_LENGTH + 1 + keyHandleLength + certificateLength + signatureLength + 2];
+        int offset = 0;
+        u2f[offset++] = REGISTER_RESERVED;
+        // uncompressed point
+        u2f[offset++] = 0x04;
+        System.arraycopy(response, x, u2f, offset, PARAMETER_LENGTH);
+        offset += PARAMETER_LENGTH;
+        System.arraycopy(response, y, u2f, offset, PARAMETER_LENGTH);
+        offset += PARAMETER_LENGTH;
+        u2f[offset++] = (byte) keyHandleLength;
+        System.arraycopy(response, keyHandle, u2f, offset, keyHandleLength);
+        offset += keyHandleLength;
+        System.arraycopy(response, certificate, u2f, offset, certificateLength);
+        offset += certificateLength;
+        System.arraycopy(response, signature, u2f, offset, signatureLength);
+        putStatus(u2f, SW_OK);
+        return u2f;
+    }
+
+    /**
+     * @throws IOException If the rpIdHash starting the authenticator data is not the application
+     *                     parameter of the request.
+     */
+    private static void checkApplication(U2FContext context, byte[] response, int authData) throws IOException {
+        byte[] application = context.getApplicationParameter();
+        for (int i = 0; i < PARAMETER_LENGTH; i++) {
+            if (response[authData + i] != application[i]) {
+                throw new IOException("Response for another application");
+            }
+        }
+    }
+
+    private static void putStatus(byte[] response, int sw) {
+        response[response.length - 2] = (byte) (sw >> 8);
+        response[response.length - 1] = (byte) sw;
+    }
+
+    private byte[] register(U2FContext context) throws Exception {
+        byte[] response = null;
+        backoff.reset();
+        byte[] authApdu = createRegisterApdu(context);
+        long presenceStart = System.nanoTime();
+        for (; ; ) {
+            if (stopped) {
+                break;
+            }
+
+            response = transport.exchange(authApdu); // auth application protocol data unit
+            if (isResponseOK(response)) {
+                metrics.recordSince(U2FMetrics.Phase.USER_PRESENCE, presenceStart);
+                break;
+            }
+            if (isResponseBusy(response)) {
+                metrics.increment(U2FMetrics.Counter.BUSY_RETRIES);
+                response = null;
+                sleepBeforePoll();
+            } else {
+                response = null;
+                break;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Wait for the next delay of the backoff before polling again, but no less than the polling
+     * interval of the transport: the device cannot answer any sooner.
+     *
+     * @throws U2FTimeoutException If the deadline passes before the delay is over.
+     */
+    private void sleepBeforePoll() throws InterruptedException, U2FTimeoutException {
+        long delay = Math.max(backoff.nextDelay(), transport.getPollInterval());
+        if ((deadline != 0) && (deadline - System.nanoTime() < delay * 1000000)) {
+            throw new U2FTimeoutException("Request deadline exceeded while waiting for the user");
+        }
+        Thread.sleep(delay);
+    }
+
+    /**
+     * Build the AUTHENTICATE APDU asking the authenticator to sign with a key handle.
+     *
+     * @param context   A request whose client data is set.
+     * @param keyHandle The key handle to sign with.
+     * @return The APDU.
+     */
+    public static byte[] createSignApdu(U2FContext context, byte[] keyHandle) {
+        return createSignApdu(createSignTemplate(context), keyHandle, FIDO_P1_SIGN);
+    }
+
+    /**
+     * Build the part of the AUTHENTICATE APDUs of a request shared by all its key handles: the
+     * header, the challenge parameter and the application parameter.
+     *
+     * @param context A request whose client data is set.
+     * @return The template.
+     */
+    public static byte[] createSignTemplate(U2FContext context) {
+        byte[] template = new byte[APDU_HEADER_LENGTH + 2 * PARAMETER_LENGTH];
+        template[0] = FIDO_CLA;
+        template[1] = FIDO_INS_AUTH;
+        // p1, p2, extended length and the length of the data are set per key handle
+        putParameters(context, template);
+        return template;
+    }
+
+    /**
+     * Build an AUTHENTICATE APDU from the template of its request.
+     *
+     * @param template  The template of the request.
+     * @param keyHandle The key handle to sign with.
+     * @param p1        0x03 to sign enforcing user presence, 0x07 to only check the key handle.
+     * @return The APDU.
+     */
+    public static byte[] createSignApdu(byte[] template, byte[] keyHandle, int p1) {
+        int msgLength = 2 * PARAMETER_LENGTH + 1 + keyHandle.length;
+        byte[] apdu = new byte[APDU_HEADER_LENGTH + msgLength + 2];
+        System.arraycopy(template, 0, apdu, 0, template.length);
+        apdu[2] = (byte) p1;
+        apdu[5] = (byte) (msgLength >> 8);
+        apdu[6] = (byte) msgLength;
+        apdu[template.length] = (byte) keyHandle.length;
+        System.arraycopy(keyHandle, 0, apdu, template.length + 1, keyHandle.length);
+        // the two trailing bytes, the maximum response length, stay 0
+        return apdu;
+    }
+
+    /**
+     * Build the REGISTER APDU.
+     *
+     * @param context A request whose client data is set.
+     * @return The APDU.
+     */
+    public static byte[] createRegisterApdu(U2FContext context) {
+        int msgLength = 2 * PARAMETER_LENGTH;
+        byte[] apdu = new byte[APDU_HEADER_LENGTH + msgLength + 2];
+        apdu[0] = FIDO_CLA;
+        apdu[1] = FIDO_INS_REGISTER;
+        apdu[5] = (byte) (msgLength >> 8);
+        apdu[6] = (byte) msgLength;
+        putParameters(context, apdu);
+        return apdu;
+    }
+
+    private static void putParameters(U2FContext context, byte[] apdu) {
+        checkClientData(context);
+        System.arraycopy(context.getChallengeParameter(), 0, apdu, APDU_HEADER_LENGTH, PARAMETER_LENGTH);
+        System.arraycopy(context.getApplicationParameter(), 0, apdu, APDU_HEADER_LENGTH + PARAMETER_LENGTH,
+                PARAMETER_LENGTH);
+    }
+
+    private static void checkClientData(U2FContext context) {
+        if (context.getClientData() == null) {
+            throw new IllegalStateException("Client data not set");
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs requests one at a time, so that only one of them uses the authenticators at any time.
+ *
+ * Requests wait in a bounded queue; when it is full the oldest waiting request is dropped. A
+ * request submitted with the key of a request already waiting or running is coalesced with it,
+ * every requester receiving the same result. A request no requester waits for any more is
+ * cancelled at once: dropped if waiting, or stopped if running, the next request only starting
+ * once the stopped one has completed.
+ *
+ * @param <R> The result of a request.
+ */
+public class U2FRequestScheduler<R> {
+
+    /**
+     * Receives the result of a request.
+     */
+    public interface Listener<R> {
+        /**
+         * @param ticket The request.
+         * @param result The result, or NULL if the request failed or was cancelled.
+         */
+        void onResult(U2FRequestScheduler<R>.Ticket ticket, R result);
+    }
+
+    /**
+     * A request. It is started on the scheduler thread and may complete later from any thread.
+     */
+    public interface Task<R> {
+        /**
+         * Start the request, which must eventually call {@link Ticket#complete}.
+         */
+        void start(U2FRequestScheduler<R>.Ticket ticket) throws Exception;
+
+        /**
+         * Stop the request as soon as possible. It must still complete its ticket. Called from any
+         * thread, and must not block.
+         */
+        void cancel();
+    }
+
+    /**
+     * A submitted request, as seen by its requesters and its task.
+     */
+    public final class Ticket {
+        private final String key;
+        private final Task<R> task;
+        private final List<Listener<R>> listeners = new ArrayList<Listener<R>>();
+        private volatile boolean cancelled;
+        private boolean done;
+
+        private Ticket(String key, Task<R> task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * @return The task running the request, shared by coalesced requesters.
+         */
+        public Task<R> getTask() {
+            return task;
+        }
+
+        /**
+         * @return Whether the request was cancelled, in which case its task should stop.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Complete the request, telling every requester. Later calls are ignored.
+         */
+        public void complete(R result) {
+            completed(this, result);
+        }
+
+        /**
+         * Stop waiting for the result. The request is cancelled if nobody else waits for it.
+         */
+        public void detach(Listener<R> listener) {
+            U2FRequestScheduler.this.detach(this, listener);
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<Ticket>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Ticket running;
+
+    /**
+     * @param capacity The number of requests that may wait for the running one.
+     */
+    public U2FRequestScheduler(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Submit a request.
+     *
+     * @param key      Identifies the request, so that duplicates are run once.
+     * @param task     Runs the request, unless coalesced with a duplicate.
+     * @param listener Receives the result.
+     * @return The ticket of the request, to detach from it.
+     */
+    public Ticket submit(String key, Task<R> task, Listener<R> listener) {
+        Ticket dropped = null;
+        Ticket ticket;
+        synchronized (this) {
+            ticket = find(key);
+            if (ticket != null) {
+                ticket.listeners.add(listener);
+                return ticket;
+            }
+            if (queue.size() >= capacity) {
+                dropped = queue.poll();
+                dropped.done = true;
+            }
+            ticket = new Ticket(key, task);
+            ticket.listeners.add(listener);
+            queue.add(ticket);
+            schedule();
+        }
+        if (dropped != null) {
+            notify(dropped, dropped.listeners, null);
+        }
+        return ticket;
+    }
+
+    /**
+     * Cancel every request and stop the scheduler thread.
+     */
+    public void shutdown() {
+        List<Ticket> dropped;
+        Ticket stopped;
+        synchronized (this) {
+            dropped = new ArrayList<Ticket>(queue);
+            queue.clear();
+            for (Ticket ticket : dropped) {
+                ticket.done = true;
+            }
+            stopped = running;
+            if (stopped != null) {
+                stopped.cancelled = true;
+            }
+        }
+        if (stopped != null) {
+            stopped.task.cancel();
+        }
+        executor.shutdown();
+        for (Ticket ticket : dropped) {
+            notify(ticket, ticket.listeners, null);
+        }
+    }
+
+    private Ticket find(String key) {
+        if ((running != null) && !running.cancelled && running.key.equals(key)) {
+            return running;
+        }
+        for (Ticket ticket : queue) {
+            if (ticket.key.equals(key)) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start the next request if none is running. Called with the lock held.
+     */
+    private void schedule() {
+        if ((running != null) || queue.isEmpty()) {
+            return;
+        }
+        final Ticket ticket = queue.poll();
+        running = ticket;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    ticket.task.start(ticket);
+                } catch (Exception e) {
+                    ticket.complete(null);
+                }
+            }
+        });
+    }
+
+    private void completed(Ticket ticket, R result) {
+        List<Listener<R>> listeners;
+        synchronized (this) {
+            if (ticket.done) {
+                return;
+            }
+            ticket.done = true;
+            listeners = new ArrayList<Listener<R>>(ticket.listeners);
+            if (running == ticket) {
+                running = null;
+                if (!executor.isShutdown()) {
+                    schedule();
+                }
+            }
+        }
+        notify(ticket, listeners, (ticket.cancelled ? null : result));
+    }
+
+    private void detach(Ticket ticket, Listener<R> listener) {
+        synchronized (this) {
+            ticket.listeners.remove(listener);
+            if (!ticket.listeners.isEmpty() || ticket.done) {
+                return;
+            }
+            if (ticket != running) {
+                queue.remove(ticket);
+                ticket.done = true;
+                return;
+            }
+            ticket.cancelled = true;
+        }
+        ticket.task.cancel();
+    }
+
+    private void notify(Ticket ticket, List<Listener<R>> listeners, R result) {
+        for (Listener<R> listener : listeners) {
+            listener.onResult(ticket, result);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles a HID framed response one packet at a time.
+ *
+ * Only the header of the packet being fed is checked, and its payload is copied straight into a
+ * response buffer sized from the length field of the initialization packet, so each packet costs
+ * the same whatever its position in the message.
+ *
+ * KEEPALIVE frames sent while the authenticator is busy or waiting for the user are skipped, and
+ * ERROR frames are raised as {@link U2FHIDException}. While on the broadcast channel, packets of
+ * other channels are left over from an aborted exchange and are skipped too.
+ */
+public class U2FResponseDecoder {
+
+    private static final int INIT_HEADER_SIZE = 7;
+    private static final int CONT_HEADER_SIZE = 5;
+
+    private static final byte CMD_KEEPALIVE = (byte) 0xbb;
+    private static final byte CMD_ERROR = (byte) 0xbf;
+
+    private final U2FHelper helper;
+    private byte tag;
+    private byte[] response;
+    private int received;
+    private int sequenceIdx;
+
+    public U2FResponseDecoder(U2FHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Prepare for a new response.
+     *
+     * @param tag The command the response must answer.
+     */
+    public void reset(byte tag) {
+        this.tag = tag;
+        response = null;
+        received = 0;
+        sequenceIdx = 0;
+    }
+
+    /**
+     * Consume one packet, from its position to position + packetSize.
+     * The position of the buffer is left unchanged.
+     *
+     * @param packet     The packet read from the device.
+     * @param packetSize The HID report size.
+     * @return TRUE once the whole response has been received.
+     * @throws IOException On command mismatch, {@link U2FChannelException} on channel or
+     *                     sequence mismatch, or {@link U2FHIDException} if the authenticator
+     *                     reports an error.
+     */
+    public boolean feed(ByteBuffer packet, int packetSize) throws IOException {
+        int start = packet.position();
+        int readChannel = packet.getInt(start);
+        int blockSize;
+        if (response == null) {
+            if (readChannel != helper.getChannel()) {
+                if (helper.getChannel() == U2FHelper.CHANNEL_BROADCAST) {
+                    return false;
+                }
+                throw new U2FChannelException("Invalid channel");
+            }
+            byte command = packet.get(start + 4);
+            if (command == CMD_KEEPALIVE) {
+                return false;
+            }
+            if (command == CMD_ERROR) {
+                throw new U2FHIDException(packet.get(start + INIT_HEADER_SIZE) & 0xff);
+            }
+            if (command != tag) {
+                throw new IOException("Invalid command");
+            }
+            int responseLength = ((packet.get(start + 5) & 0xff) << 8) | (packet.get(start + 6) & 0xff);
+            response = new byte[responseLength];
+            blockSize = Math.min(responseLength, packetSize - INIT_HEADER_SIZE);
+            packet.position(start + INIT_HEADER_SIZE);
+        } else {
+            if (readChannel != helper.getChannel()) {
+                throw new U2FChannelException("Invalid channel");
+            }
+            if ((packet.get(start + 4) & 0xff) != sequenceIdx) {
+                throw new U2FChannelException("Invalid sequence");
+            }
+            sequenceIdx++;
+            blockSize = Math.min(response.length - received, packetSize - CONT_HEADER_SIZE);
+            packet.position(start + CONT_HEADER_SIZE);
+        }
+        packet.get(response, received, blockSize);
+        packet.position(start);
+        received += blockSize;
+        return received == response.length;
+    }
+
+    /**
+     * @return The reassembled response, or NULL if it is not complete yet.
+     */
+    public byte[] getResponse() {
+        if ((response == null) || (received != response.length)) {
+            return null;
+        }
+        return response;
+    }
+}
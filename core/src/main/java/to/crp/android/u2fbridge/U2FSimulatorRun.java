@@ -0,0 +1,146 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Measures end-to-end register and sign latency and sign throughput against
+ * {@link U2FSoftAuthenticator} on a plain JVM.
+ *
+ * Arguments: [iterations] [packet latency us] [processing latency ms]
+ * [user presence delays ms, comma separated] [presence wait: adaptive | fixed | keepalive | ctap2]
+ * [wire recording file, or "-"] [report size]
+ *
+ * With user presence delays, the signs are run for each delay in turn, and the touch latency,
+ * from the simulated touch to the sign response, is reported per delay. Each touch comes after
+ * the delay plus a random part of {@link #FIXED_POLL_MILLIS}, so that it does not line up with
+ * the fixed polls, which would hide their latency for delays that are multiples of it.
+ *
+ * "fixed" polls every 300 ms as the bridge used to, "adaptive" polls with
+ * {@link U2FBackoff#adaptive()} and "keepalive" has the authenticator hold the command and send
+ * KEEPALIVE frames until the touch. "ctap2" has the authenticator announce CTAP2, so that the
+ * registration is a makeCredential and each sign a single getAssertion over CTAPHID_CBOR, held
+ * until the touch, to compare with the U2F commands.
+ *
+ * With a file, the packets are recorded into it for {@link U2FReplayRun}. The report size
+ * defaults to 64 bytes; high speed keys use up to 512.
+ */
+public class U2FSimulatorRun {
+
+    private static final String APP_ID = "https://u2f.example.com";
+    private static final int FIXED_POLL_MILLIS = 300;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 200);
+        long packetMicros = (args.length > 1 ? Long.parseLong(args[1]) : 0);
+        long processingMillis = (args.length > 2 ? Long.parseLong(args[2]) : 0);
+        String[] delays = (args.length > 3 ? args[3] : "0").split(",");
+        long[] presenceMillis = new long[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            presenceMillis[i] = Long.parseLong(delays[i]);
+        }
+        String presenceWait = (args.length > 4 ? args[4] : "adaptive");
+        int reportSize = (args.length > 6 ? Integer.parseInt(args[6]) : U2FSoftAuthenticator.PACKET_SIZE);
+        U2FWireRecorder recorder = ((args.length > 5) && !"-".equals(args[5])
+                ? new U2FWireRecorder(new File(args[5]), 65536, reportSize) : null);
+
+        U2FSoftAuthenticator authenticator = new U2FSoftAuthenticator(reportSize);
+        authenticator.setLatency(packetMicros, processingMillis);
+        authenticator.setUserPresenceDelay(presenceMillis[0]);
+        authenticator.setKeepalive("keepalive".equals(presenceWait));
+        boolean ctap2 = "ctap2".equals(presenceWait);
+        authenticator.setCtap2(ctap2);
+        U2FTransportSimulated transport = new U2FTransportSimulated(authenticator);
+        if (recorder != null) {
+            transport.setTraceSink(recorder.newSink());
+        }
+        U2FRequestProcessor processor = new U2FRequestProcessor(transport);
+        if ("fixed".equals(presenceWait)) {
+            processor.setPresenceBackoff(U2FBackoff.fixed(FIXED_POLL_MILLIS));
+        }
+        Random random = new Random(0);
+        Random touchRandom = new Random(1);
+
+        long start = System.nanoTime();
+        transport.init();
+        U2FContext register = createContext(random, null);
+        U2FCodec.prepareClientData(register);
+        byte[] registration = (ctap2 ? processor.processMakeCredential(register) : processor.processRegister(register));
+        long registerNanos = System.nanoTime() - start;
+        if (!U2FRequestProcessor.isResponseOK(registration)) {
+            throw new IllegalStateException("Registration failed");
+        }
+        Vector<byte[]> keyHandles = new Vector<byte[]>();
+        keyHandles.add(Arrays.copyOfRange(registration, 67, 67 + (registration[66] & 0xff)));
+        System.out.println("register: " + (registerNanos / 1000) + " us");
+
+        int signs = iterations * presenceMillis.length;
+        long[] samples = new long[signs];
+        long[][] touchSamples = new long[presenceMillis.length][iterations];
+        long total = System.nanoTime();
+        for (int d = 0; d < presenceMillis.length; d++) {
+            for (int i = 0; i < iterations; i++) {
+                if (presenceMillis[d] > 0) {
+                    authenticator.setUserPresenceDelay(presenceMillis[d] + touchRandom.nextInt(FIXED_POLL_MILLIS));
+                }
+                U2FContext sign = createContext(random, keyHandles);
+                start = System.nanoTime();
+                U2FCodec.prepareClientData(sign);
+                byte[] response = processor.processSign(sign);
+                long end = System.nanoTime();
+                samples[d * iterations + i] = end - start;
+                touchSamples[d][i] = end - authenticator.getLastTouchNanos();
+                if (!U2FRequestProcessor.isResponseOK(response)) {
+                    throw new IllegalStateException("Sign failed");
+                }
+            }
+        }
+        total = System.nanoTime() - total;
+        transport.close();
+        if (recorder != null) {
+            recorder.close();
+        }
+
+        Arrays.sort(samples);
+        System.out.println("sign: p50 " + (samples[signs / 2] / 1000) + " us, p99 "
+                + (samples[signs * 99 / 100] / 1000) + " us, max "
+                + (samples[signs - 1] / 1000) + " us");
+        for (int d = 0; d < presenceMillis.length; d++) {
+            if (presenceMillis[d] > 0) {
+                long[] touches = touchSamples[d];
+                Arrays.sort(touches);
+                System.out.println("touch latency (" + presenceWait + ", " + presenceMillis[d] + " ms): p50 "
+                        + (touches[iterations / 2] / 1000) + " us, p99 "
+                        + (touches[iterations * 99 / 100] / 1000) + " us, max "
+                        + (touches[iterations - 1] / 1000) + " us");
+            }
+        }
+        System.out.println("sign throughput: " + (signs * 1000000000L / total) + " requests/s");
+        System.out.print(U2FMetrics.getInstance().dump());
+    }
+
+    private static U2FContext createContext(Random random, Vector<byte[]> keyHandles) {
+        byte[] challenge = new byte[32];
+        random.nextBytes(challenge);
+        return new U2FContext(APP_ID, challenge, keyHandles, 1, keyHandles != null);
+    }
+}
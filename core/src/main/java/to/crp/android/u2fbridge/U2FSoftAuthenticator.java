@@ -0,0 +1,818 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A software U2F authenticator speaking the HID framing protocol one packet at a time.
+ *
+ * It implements channel allocation (INIT), PING, MSG and CANCEL, and the U2F REGISTER, AUTHENTICATE and
+ * VERSION commands with real ECDSA P-256 keys. Packet and processing latencies and the delay
+ * before the simulated user touches the key can be configured, so that the protocol path can be
+ * exercised and timed without a physical key.
+ *
+ * Commands requiring user presence are answered with "conditions not satisfied" until the touch,
+ * as U2F keys do, or optionally held while KEEPALIVE frames are sent every 100 ms. CANCEL drops
+ * the held command and stops waiting for the touch.
+ *
+ * Optionally, CTAP2 support is announced and the makeCredential and getAssertion commands are
+ * answered over CBOR, for ES256 credentials attested in the fido-u2f format. They are always held
+ * until the touch. Credentials are shared between both protocols.
+ */
+public class U2FSoftAuthenticator {
+
+    public static final int PACKET_SIZE = 64;
+
+    private static final int CHANNEL_BROADCAST = 0xffffffff;
+
+    private static final byte CMD_PING = (byte) 0x81;
+    private static final byte CMD_MSG = (byte) 0x83;
+    private static final byte CMD_INIT = (byte) 0x86;
+    private static final byte CMD_CANCEL = (byte) 0x91;
+    private static final byte CMD_CBOR = (byte) 0x90;
+    private static final byte CMD_KEEPALIVE = (byte) 0xbb;
+    private static final byte CMD_ERROR = (byte) 0xbf;
+
+    private static final byte ERR_INVALID_CMD = 0x01;
+    private static final byte ERR_INVALID_LEN = 0x03;
+    private static final byte ERR_INVALID_SEQ = 0x04;
+    private static final byte ERR_CHANNEL_BUSY = 0x06;
+    private static final byte ERR_INVALID_CHANNEL = 0x0b;
+
+    private static final byte CAPABILITY_CBOR = 0x04;
+
+    private static final byte CTAP2_MAKE_CREDENTIAL = 0x01;
+    private static final byte CTAP2_GET_ASSERTION = 0x02;
+    private static final byte CTAP2_OK = 0x00;
+    private static final int COSE_ALG_ES256 = -7;
+    private static final byte FLAG_USER_PRESENT = 0x01;
+    private static final byte FLAG_ATTESTED_CREDENTIAL = 0x40;
+
+    private static final byte STATUS_UPNEEDED = 2;
+    private static final long KEEPALIVE_INTERVAL_NANOS = 100000000L;
+
+    private static final int INS_REGISTER = 0x01;
+    private static final int INS_AUTHENTICATE = 0x02;
+    private static final int INS_VERSION = 0x03;
+
+    private static final int P1_CHECK_ONLY = 0x07;
+    private static final int P1_ENFORCE_PRESENCE = 0x03;
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6a80;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6d00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6e00;
+
+    private static final byte[] VERSION = {'U', '2', 'F', '_', 'V', '2'};
+
+    private static class KeyEntry {
+        final byte[] application;
+        final PrivateKey privateKey;
+
+        KeyEntry(byte[] application, PrivateKey privateKey) {
+            this.application = application;
+            this.privateKey = privateKey;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final KeyPairGenerator keyGenerator;
+    private final KeyPair attestationKey;
+    private final byte[] attestationCertificate;
+    private final HashMap<String, KeyEntry> keys = new HashMap<String, KeyEntry>();
+    private final Set<Integer> channels = new HashSet<Integer>();
+    private final ArrayDeque<byte[]> responsePackets = new ArrayDeque<byte[]>();
+    private int nextChannel = 1;
+    private int counter;
+
+    // message being received
+    private int rxChannel;
+    private byte rxCommand;
+    private byte[] rxData;
+    private int rxReceived;
+    private int rxSequence;
+
+    private long packetLatencyNanos;
+    private long processingLatencyNanos;
+    private long userPresenceDelayNanos;
+    private long presenceRequestedAt = -1;
+    private long lastTouchAt;
+    private boolean keepalive;
+    private boolean ctap2;
+    private final int packetSize;
+    private final int maxMessageLength;
+
+    // command held until the user touches the key
+    private int heldChannel;
+    private byte heldCommand;
+    private byte[] heldData;
+
+    public U2FSoftAuthenticator() throws GeneralSecurityException {
+        this(PACKET_SIZE);
+    }
+
+    /**
+     * @param packetSize The size of the HID reports, in both directions.
+     */
+    public U2FSoftAuthenticator(int packetSize) throws GeneralSecurityException {
+        if (packetSize < U2FCommandEncoder.MIN_PACKET_SIZE) {
+            throw new IllegalArgumentException("Report too small for the HID framing");
+        }
+        this.packetSize = packetSize;
+        maxMessageLength = U2FCommandEncoder.getMaxMessageLength(packetSize);
+        keyGenerator = KeyPairGenerator.getInstance("EC");
+        keyGenerator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        attestationKey = keyGenerator.generateKeyPair();
+        attestationCertificate = createCertificate(attestationKey);
+    }
+
+    /**
+     * @param packetMicros     Time taken to transfer each packet, in either direction.
+     * @param processingMillis Time taken to process each U2F command.
+     */
+    public void setLatency(long packetMicros, long processingMillis) {
+        packetLatencyNanos = packetMicros * 1000L;
+        processingLatencyNanos = processingMillis * 1000000L;
+    }
+
+    /**
+     * @param millis Time between the first command requiring user presence and the simulated
+     *               touch. 0 means the user is always present.
+     */
+    public void setUserPresenceDelay(long millis) {
+        userPresenceDelayNanos = millis * 1000000L;
+    }
+
+    /**
+     * @param keepalive TRUE to hold commands waiting for user presence and send KEEPALIVE frames
+     *                  until the touch, instead of answering "conditions not satisfied".
+     */
+    public void setKeepalive(boolean keepalive) {
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * @param ctap2 TRUE to announce CTAP2 support and answer CTAPHID_CBOR commands.
+     */
+    public void setCtap2(boolean ctap2) {
+        this.ctap2 = ctap2;
+    }
+
+    /**
+     * @return The size of the HID reports.
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return The {@link System#nanoTime} of the last simulated touch.
+     */
+    public synchronized long getLastTouchNanos() {
+        return lastTouchAt;
+    }
+
+    /**
+     * Receive one packet from the host. Responses become available through {@link #read}.
+     *
+     * @param packet The packet, from its position.
+     */
+    public synchronized void write(ByteBuffer packet) {
+        pause(packetLatencyNanos);
+        int start = packet.position();
+        int channel = packet.getInt(start);
+        byte command = packet.get(start + 4);
+        if ((command & 0x80) != 0) {
+            if ((rxData != null) && (channel != rxChannel)) {
+                sendError(channel, ERR_CHANNEL_BUSY);
+                return;
+            }
+            int length = ((packet.get(start + 5) & 0xff) << 8) | (packet.get(start + 6) & 0xff);
+            if (length > maxMessageLength) {
+                sendError(channel, ERR_INVALID_LEN);
+                return;
+            }
+            rxChannel = channel;
+            rxCommand = command;
+            rxData = new byte[length];
+            rxReceived = 0;
+            rxSequence = 0;
+            receive(packet, start + 7, packetSize - 7);
+        } else {
+            if (rxData == null) {
+                // stray continuation packet, ignored
+                return;
+            }
+            if (channel != rxChannel) {
+                sendError(channel, ERR_CHANNEL_BUSY);
+                return;
+            }
+            if ((command & 0xff) != rxSequence) {
+                rxData = null;
+                sendError(channel, ERR_INVALID_SEQ);
+                return;
+            }
+            rxSequence++;
+            receive(packet, start + 5, packetSize - 5);
+        }
+    }
+
+    /**
+     * Send the next response packet to the host.
+     *
+     * @param packet Receives the packet at its position.
+     * @throws IOException If no response is pending.
+     */
+    public synchronized void read(ByteBuffer packet) throws IOException {
+        pause(packetLatencyNanos);
+        if (responsePackets.isEmpty() && (heldData != null)) {
+            awaitTouch();
+        }
+        byte[] next = responsePackets.poll();
+        if (next == null) {
+            throw new IOException("No response pending");
+        }
+        packet.put(next);
+    }
+
+    /**
+     * Wait for the touch or the next keepalive, whichever comes first, and queue the response to
+     * the held command or a KEEPALIVE frame.
+     */
+    private void awaitTouch() {
+        long touchAt = presenceRequestedAt + userPresenceDelayNanos;
+        pause(Math.min(touchAt - System.nanoTime(), KEEPALIVE_INTERVAL_NANOS));
+        if (System.nanoTime() - touchAt >= 0) {
+            byte[] data = heldData;
+            heldData = null;
+            send(heldChannel, heldCommand, (heldCommand == CMD_CBOR ? processCbor(data) : processAPDU(data)));
+        } else {
+            send(heldChannel, CMD_KEEPALIVE, new byte[]{STATUS_UPNEEDED});
+        }
+    }
+
+    private void receive(ByteBuffer packet, int offset, int available) {
+        int blockSize = Math.min(rxData.length - rxReceived, available);
+        for (int i = 0; i < blockSize; i++) {
+            rxData[rxReceived + i] = packet.get(offset + i);
+        }
+        rxReceived += blockSize;
+        if (rxReceived == rxData.length) {
+            byte[] data = rxData;
+            rxData = null;
+            dispatch(rxChannel, rxCommand, data);
+        }
+    }
+
+    private void dispatch(int channel, byte command, byte[] data) {
+        if (command == CMD_INIT) {
+            processInit(channel, data);
+            return;
+        }
+        if ((channel == CHANNEL_BROADCAST) || !channels.contains(channel)) {
+            sendError(channel, ERR_INVALID_CHANNEL);
+            return;
+        }
+        if (command == CMD_CANCEL) {
+            if ((heldData != null) && (heldChannel == channel)) {
+                if (heldCommand == CMD_CBOR) {
+                    send(channel, CMD_CBOR, new byte[]{U2FCtap2Exception.ERR_KEEPALIVE_CANCEL});
+                }
+                heldData = null;
+            }
+            presenceRequestedAt = -1;
+        } else if (command == CMD_PING) {
+            send(channel, CMD_PING, data);
+        } else if (command == CMD_MSG) {
+            pause(processingLatencyNanos);
+            byte[] response = processAPDU(data);
+            if (keepalive && (presenceRequestedAt >= 0)) {
+                hold(channel, CMD_MSG, data);
+            } else {
+                send(channel, CMD_MSG, response);
+            }
+        } else if (ctap2 && (command == CMD_CBOR)) {
+            pause(processingLatencyNanos);
+            byte[] response = processCbor(data);
+            if (response == null) {
+                hold(channel, CMD_CBOR, data);
+            } else {
+                send(channel, CMD_CBOR, response);
+            }
+        } else {
+            sendError(channel, ERR_INVALID_CMD);
+        }
+    }
+
+    private void processInit(int channel, byte[] nonce) {
+        if (nonce.length != 8) {
+            sendError(channel, ERR_INVALID_LEN);
+            return;
+        }
+        int allocated = channel;
+        if (channel == CHANNEL_BROADCAST) {
+            allocated = nextChannel++;
+            channels.add(allocated);
+        }
+        ByteBuffer response = ByteBuffer.allocate(17);
+        response.put(nonce);
+        response.putInt(allocated);
+        response.put((byte) 2); // protocol version
+        response.put((byte) 1); // major device version
+        response.put((byte) 0); // minor device version
+        response.put((byte) 0); // build device version
+        response.put(ctap2 ? CAPABILITY_CBOR : 0); // capabilities
+        send(channel, CMD_INIT, response.array());
+    }
+
+    private void hold(int channel, byte command, byte[] data) {
+        heldChannel = channel;
+        heldCommand = command;
+        heldData = data;
+    }
+
+    /**
+     * @return The CTAP2 status and response, or NULL while waiting for the user.
+     */
+    private byte[] processCbor(byte[] data) {
+        if (data.length == 0) {
+            return new byte[]{U2FCtap2Exception.ERR_INVALID_LENGTH};
+        }
+        try {
+            U2FCborReader reader = new U2FCborReader(data, 1, data.length - 1);
+            switch (data[0]) {
+                case CTAP2_MAKE_CREDENTIAL:
+                    return makeCredential(reader);
+                case CTAP2_GET_ASSERTION:
+                    return getAssertion(reader);
+                default:
+                    return new byte[]{U2FCtap2Exception.ERR_INVALID_COMMAND};
+            }
+        } catch (IOException e) {
+            return new byte[]{U2FCtap2Exception.ERR_INVALID_CBOR};
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] makeCredential(U2FCborReader reader) throws IOException, GeneralSecurityException {
+        byte[] clientDataHash = null;
+        String rpId = null;
+        boolean es256 = false;
+        boolean excluded = false;
+        for (int entries = reader.beginMap(); entries > 0; entries--) {
+            switch (reader.nextInt()) {
+                case 1:
+                    clientDataHash = reader.nextByteArray();
+                    break;
+                case 2:
+                    rpId = readId(reader);
+                    break;
+                case 4:
+                    for (int i = reader.beginArray(); i > 0; i--) {
+                        for (int fields = reader.beginMap(); fields > 0; fields--) {
+                            if ("alg".equals(reader.nextString())) {
+                                es256 |= (reader.nextLong() == COSE_ALG_ES256);
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                    }
+                    break;
+                case 5:
+                    excluded = (findCredential(reader, rpId) != null);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        if ((clientDataHash == null) || (rpId == null)) {
+            return new byte[]{U2FCtap2Exception.ERR_MISSING_PARAMETER};
+        }
+        if (!es256) {
+            return new byte[]{U2FCtap2Exception.ERR_UNSUPPORTED_ALGORITHM};
+        }
+        if (!isUserPresent()) {
+            return null;
+        }
+        if (excluded) {
+            return new byte[]{U2FCtap2Exception.ERR_CREDENTIAL_EXCLUDED};
+        }
+        byte[] application = U2FDigest.applicationParameter(rpId);
+        KeyPair keyPair = keyGenerator.generateKeyPair();
+        byte[] publicKey = encodePublicKey((ECPublicKey) keyPair.getPublic());
+        byte[] keyHandle = new byte[64];
+        random.nextBytes(keyHandle);
+        keys.put(Dump.dump(keyHandle), new KeyEntry(application, keyPair.getPrivate()));
+
+        ByteArrayOutputStream authData = new ByteArrayOutputStream();
+        authData.write(application, 0, application.length);
+        authData.write(FLAG_USER_PRESENT | FLAG_ATTESTED_CREDENTIAL);
+        authData.write(ByteBuffer.allocate(4).putInt(counter).array(), 0, 4);
+        authData.write(new byte[16], 0, 16); // AAGUID
+        authData.write(keyHandle.length >> 8);
+        authData.write(keyHandle.length);
+        authData.write(keyHandle, 0, keyHandle.length);
+        byte[] coseKey = new U2FCborWriter(80).beginMap(5)
+                .value(1).value(2) // EC2
+                .value(3).value(COSE_ALG_ES256)
+                .value(-1).value(1) // P-256
+                .value(-2).value(publicKey, 1, 32)
+                .value(-3).value(publicKey, 33, 32)
+                .toByteArray();
+        authData.write(coseKey, 0, coseKey.length);
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(attestationKey.getPrivate());
+        signature.update((byte) 0x00);
+        signature.update(application);
+        signature.update(clientDataHash);
+        signature.update(keyHandle);
+        signature.update(publicKey);
+
+        return new U2FCborWriter(512).raw(CTAP2_OK).beginMap(3)
+                .value(1).value("fido-u2f")
+                .value(2).value(authData.toByteArray())
+                .value(3).beginMap(2)
+                .value("sig").value(signature.sign())
+                .value("x5c").beginArray(1).value(attestationCertificate)
+                .toByteArray();
+    }
+
+    private byte[] getAssertion(U2FCborReader reader) throws IOException, GeneralSecurityException {
+        String rpId = null;
+        byte[] clientDataHash = null;
+        byte[] keyHandle = null;
+        for (int entries = reader.beginMap(); entries > 0; entries--) {
+            switch (reader.nextInt()) {
+                case 1:
+                    rpId = reader.nextString();
+                    break;
+                case 2:
+                    clientDataHash = reader.nextByteArray();
+                    break;
+                case 3:
+                    keyHandle = findCredential(reader, rpId);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        if ((rpId == null) || (clientDataHash == null)) {
+            return new byte[]{U2FCtap2Exception.ERR_MISSING_PARAMETER};
+        }
+        if (keyHandle == null) {
+            return new byte[]{U2FCtap2Exception.ERR_NO_CREDENTIALS};
+        }
+        if (!isUserPresent()) {
+            return null;
+        }
+        counter++;
+        ByteBuffer authData = ByteBuffer.allocate(37);
+        authData.put(U2FDigest.applicationParameter(rpId));
+        authData.put(FLAG_USER_PRESENT);
+        authData.putInt(counter);
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(keys.get(Dump.dump(keyHandle)).privateKey);
+        signature.update(authData.array());
+        signature.update(clientDataHash);
+
+        return new U2FCborWriter(256).raw(CTAP2_OK).beginMap(3)
+                .value(1).beginMap(2)
+                .value("id").value(keyHandle)
+                .value("type").value("public-key")
+                .value(2).value(authData.array())
+                .value(3).value(signature.sign())
+                .toByteArray();
+    }
+
+    /**
+     * Read the "id" of a relying party map.
+     */
+    private static String readId(U2FCborReader reader) throws IOException {
+        String id = null;
+        for (int fields = reader.beginMap(); fields > 0; fields--) {
+            if ("id".equals(reader.nextString())) {
+                id = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Read a list of credential descriptors.
+     *
+     * @return The first credential id of the list that is a key of the relying party, or NULL.
+     */
+    private byte[] findCredential(U2FCborReader reader, String rpId) throws IOException {
+        byte[] application = (rpId != null ? U2FDigest.applicationParameter(rpId) : null);
+        byte[] found = null;
+        for (int i = reader.beginArray(); i > 0; i--) {
+            for (int fields = reader.beginMap(); fields > 0; fields--) {
+                if (!"id".equals(reader.nextString())) {
+                    reader.skipValue();
+                    continue;
+                }
+                byte[] id = reader.nextByteArray();
+                KeyEntry key = keys.get(Dump.dump(id));
+                if ((found == null) && (key != null) && Arrays.equals(key.application, application)) {
+                    found = id;
+                }
+            }
+        }
+        return found;
+    }
+
+    private byte[] processAPDU(byte[] apdu) {
+        if (apdu.length < 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        int dataOffset;
+        int dataLength;
+        if (apdu.length == 4) {
+            dataOffset = 4;
+            dataLength = 0;
+        } else if ((apdu[4] == 0) && (apdu.length >= 7)) {
+            dataOffset = 7;
+            dataLength = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+        } else {
+            dataOffset = 5;
+            dataLength = apdu[4] & 0xff;
+        }
+        if (dataOffset + dataLength > apdu.length) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (apdu[0] != 0) {
+            return status(SW_CLA_NOT_SUPPORTED);
+        }
+        byte[] data = Arrays.copyOfRange(apdu, dataOffset, dataOffset + dataLength);
+        try {
+            switch (apdu[1]) {
+                case INS_REGISTER:
+                    return register(data);
+                case INS_AUTHENTICATE:
+                    return authenticate(apdu[2] & 0xff, data);
+                case INS_VERSION:
+                    return withStatus(VERSION, SW_OK);
+                default:
+                    return status(SW_INS_NOT_SUPPORTED);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] register(byte[] data) throws GeneralSecurityException {
+        if (data.length != 64) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (!isUserPresent()) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte[] challenge = Arrays.copyOfRange(data, 0, 32);
+        byte[] application = Arrays.copyOfRange(data, 32, 64);
+        KeyPair keyPair = keyGenerator.generateKeyPair();
+        byte[] publicKey = encodePublicKey((ECPublicKey) keyPair.getPublic());
+        byte[] keyHandle = new byte[64];
+        random.nextBytes(keyHandle);
+        keys.put(Dump.dump(keyHandle), new KeyEntry(application, keyPair.getPrivate()));
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(attestationKey.getPrivate());
+        signature.update((byte) 0x00);
+        signature.update(application);
+        signature.update(challenge);
+        signature.update(keyHandle);
+        signature.update(publicKey);
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(0x05);
+        response.write(publicKey, 0, publicKey.length);
+        response.write(keyHandle.length);
+        response.write(keyHandle, 0, keyHandle.length);
+        response.write(attestationCertificate, 0, attestationCertificate.length);
+        byte[] signed = signature.sign();
+        response.write(signed, 0, signed.length);
+        return withStatus(response.toByteArray(), SW_OK);
+    }
+
+    private byte[] authenticate(int p1, byte[] data) throws GeneralSecurityException {
+        if ((data.length < 65) || (data.length != 65 + (data[64] & 0xff))) {
+            return status(SW_WRONG_LENGTH);
+        }
+        byte[] challenge = Arrays.copyOfRange(data, 0, 32);
+        byte[] application = Arrays.copyOfRange(data, 32, 64);
+        byte[] keyHandle = Arrays.copyOfRange(data, 65, data.length);
+        KeyEntry key = keys.get(Dump.dump(keyHandle));
+        if ((key == null) || !Arrays.equals(key.application, application)) {
+            return status(SW_WRONG_DATA);
+        }
+        if (p1 == P1_CHECK_ONLY) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte presence = 0x00;
+        if (p1 == P1_ENFORCE_PRESENCE) {
+            if (!isUserPresent()) {
+                return status(SW_CONDITIONS_NOT_SATISFIED);
+            }
+            presence = 0x01;
+        }
+        counter++;
+        byte[] encodedCounter = ByteBuffer.allocate(4).putInt(counter).array();
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(key.privateKey);
+        signature.update(application);
+        signature.update(presence);
+        signature.update(encodedCounter);
+        signature.update(challenge);
+        byte[] signed = signature.sign();
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(presence);
+        response.write(encodedCounter, 0, encodedCounter.length);
+        response.write(signed, 0, signed.length);
+        return withStatus(response.toByteArray(), SW_OK);
+    }
+
+    /**
+     * The user touches the key {@link #userPresenceDelayNanos} after presence is first asked for.
+     * A touch is consumed by the command it satisfies.
+     */
+    private boolean isUserPresent() {
+        long now = System.nanoTime();
+        if (presenceRequestedAt < 0) {
+            presenceRequestedAt = now;
+        }
+        if (now - presenceRequestedAt >= userPresenceDelayNanos) {
+            lastTouchAt = presenceRequestedAt + userPresenceDelayNanos;
+            presenceRequestedAt = -1;
+            return true;
+        }
+        return false;
+    }
+
+    private void sendError(int channel, byte error) {
+        send(channel, CMD_ERROR, new byte[]{error});
+    }
+
+    private void send(int channel, byte command, byte[] data) {
+        int offset = 0;
+        int sequence = 0;
+        ByteBuffer packet = ByteBuffer.allocate(packetSize);
+        packet.putInt(channel);
+        packet.put(command);
+        packet.put((byte) (data.length >> 8));
+        packet.put((byte) data.length);
+        int blockSize = Math.min(data.length, packetSize - 7);
+        packet.put(data, offset, blockSize);
+        offset += blockSize;
+        responsePackets.add(packet.array());
+        while (offset != data.length) {
+            packet = ByteBuffer.allocate(packetSize);
+            packet.putInt(channel);
+            packet.put((byte) sequence++);
+            blockSize = Math.min(data.length - offset, packetSize - 5);
+            packet.put(data, offset, blockSize);
+            offset += blockSize;
+            responsePackets.add(packet.array());
+        }
+    }
+
+    private static byte[] status(int sw) {
+        return withStatus(new byte[0], sw);
+    }
+
+    private static byte[] withStatus(byte[] data, int sw) {
+        byte[] response = Arrays.copyOf(data, data.length + 2);
+        response[data.length] = (byte) (sw >> 8);
+        response[data.length + 1] = (byte) sw;
+        return response;
+    }
+
+    private static void pause(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            try {
+                Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The public key as an uncompressed X9.62 point.
+     */
+    private static byte[] encodePublicKey(ECPublicKey key) {
+        byte[] point = new byte[65];
+        point[0] = 0x04;
+        copyUnsigned(key.getW().getAffineX(), point, 1);
+        copyUnsigned(key.getW().getAffineY(), point, 33);
+        return point;
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] target, int offset) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, target, offset + 32 - length, length);
+    }
+
+    /**
+     * Build a minimal self-signed X.509 v3 attestation certificate for the key.
+     */
+    private static byte[] createCertificate(KeyPair keyPair) throws GeneralSecurityException {
+        byte[] algorithm = der(0x30, der(0x06, new byte[]{0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02}));
+        byte[] name = der(0x30, der(0x31, der(0x30, concat(
+                der(0x06, new byte[]{0x55, 0x04, 0x03}),
+                der(0x0c, "U2F Bridge Simulator".getBytes())))));
+        byte[] validity = der(0x30, concat(
+                der(0x17, "170101000000Z".getBytes()),
+                der(0x17, "370101000000Z".getBytes())));
+        byte[] tbs = der(0x30, concat(
+                der(0xa0, der(0x02, new byte[]{0x02})),
+                der(0x02, new byte[]{0x01}),
+                algorithm,
+                name,
+                validity,
+                name,
+                keyPair.getPublic().getEncoded()));
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbs);
+        byte[] signed = signature.sign();
+        byte[] bitString = new byte[signed.length + 1];
+        System.arraycopy(signed, 0, bitString, 1, signed.length);
+        return der(0x30, concat(tbs, algorithm, der(0x03, bitString)));
+    }
+
+    private static byte[] der(int tag, byte[] content) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(tag);
+        if (content.length < 0x80) {
+            output.write(content.length);
+        } else if (content.length < 0x100) {
+            output.write(0x81);
+            output.write(content.length);
+        } else {
+            output.write(0x82);
+            output.write(content.length >> 8);
+            output.write(content.length);
+        }
+        output.write(content, 0, content.length);
+        return output.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+}
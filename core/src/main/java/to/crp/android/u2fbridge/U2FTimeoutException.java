@@ -0,0 +1,33 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The deadline of a request, or the timeout of a single transfer, passed before the
+ * authenticator answered.
+ */
+public class U2FTimeoutException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public U2FTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the traffic of a transport. Transports only call a sink when one is installed, and
+ * hand it raw data: any formatting is left to the sink.
+ */
+public interface U2FTraceSink {
+
+    /**
+     * A packet was sent or received.
+     *
+     * @param out    TRUE for a packet sent to the device.
+     * @param packet The packet, starting at the buffer position. The position must not be changed.
+     * @param length The packet length.
+     */
+    public void packet(boolean out, ByteBuffer packet, int length);
+
+    /**
+     * A whole message was sent or received.
+     *
+     * @param out  TRUE for a message sent to the device.
+     * @param data The message payload.
+     */
+    public void message(boolean out, byte[] data);
+
+    /**
+     * Something happened on the transport, such as a channel allocation.
+     */
+    public void event(String description);
+
+}
@@ -0,0 +1,100 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+
+/**
+ * A connection to a U2F authenticator, exchanging U2F messages over an initialized channel.
+ */
+public interface U2FTransport {
+
+    /**
+     * Allocate a channel on the authenticator.
+     *
+     * @throws IOException On communication error.
+     */
+    public void init() throws IOException;
+
+    /**
+     * Send a U2F message (APDU) and wait for its response.
+     *
+     * @param command The APDU.
+     * @return The response, including the status word.
+     * @throws IOException On communication error.
+     */
+    public byte[] exchange(byte[] command) throws IOException;
+
+    /**
+     * Send a raw command and wait for its response.
+     *
+     * @param tag     The command tag.
+     * @param command The command payload.
+     * @return The response payload.
+     * @throws IOException On communication error.
+     */
+    public byte[] exchange(byte tag, byte[] command) throws IOException;
+
+    /**
+     * Send a CTAP2 command over CTAPHID_CBOR and wait for its response.
+     *
+     * @param request The CTAP2 command byte followed by its CBOR encoded parameters.
+     * @return The CTAP2 status byte followed by the CBOR encoded response, if any.
+     * @throws IOException On communication error.
+     */
+    public byte[] exchangeCbor(byte[] request) throws IOException;
+
+    /**
+     * @return Whether the authenticator announced CTAP2 support when its channel was allocated.
+     */
+    public boolean supportsCbor();
+
+    /**
+     * @return The shortest useful time between two polls of the authenticator, in milliseconds:
+     * the interval at which the host polls its IN endpoint, or 0 if unknown.
+     */
+    public int getPollInterval();
+
+    public void close() throws IOException;
+
+    /**
+     * Fail every exchange still running or started after a point in time with a
+     * {@link U2FTimeoutException}.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} of the deadline, or 0 for none.
+     */
+    public void setDeadline(long deadlineNanos);
+
+    /**
+     * Abort the exchange in progress, if any, from another thread. The blocked transfer fails at
+     * once with an {@link java.io.InterruptedIOException}, after the authenticator is told to
+     * drop the command.
+     */
+    public void abort();
+
+    /**
+     * Tell the authenticator to stop waiting for the user, when a flow is given up between two
+     * exchanges.
+     *
+     * @throws IOException On communication error.
+     */
+    public void cancel() throws IOException;
+
+    public void setDebug(boolean debugFlag);
+
+}
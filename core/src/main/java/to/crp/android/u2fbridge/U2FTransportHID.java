@@ -0,0 +1,417 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Base for transports speaking the U2F HID framing protocol. Channel initialization and the
+ * splitting and reassembly of messages are done here; subclasses only move packets.
+ *
+ * Packets are the size of the input and output reports of the device, which may differ from the
+ * usual 64 bytes.
+ *
+ * When a message fails because the channel is out of sync, busy or no longer valid, a new
+ * channel is initialized and the message is sent again once.
+ *
+ * Once a deadline is set, it is checked before each packet is sent or read. Subclasses doing
+ * blocking I/O also bound each wait with {@link #getWaitDeadline(long)}.
+ *
+ * An exchange aborted from another thread is cancelled on the authenticator with a CANCEL
+ * command, and its channel is left: the rest of the aborted response may still come, and is
+ * skipped while the next exchange allocates a new channel.
+ */
+public abstract class U2FTransportHID implements U2FTransport {
+
+    protected static final byte TAG_INIT = (byte) 0x86;
+    protected static final byte TAG_MSG = (byte) 0x83;
+    protected static final byte TAG_CANCEL = (byte) 0x91;
+    protected static final byte TAG_CBOR = (byte) 0x90;
+
+    private static final int INIT_CAPABILITIES_OFFSET = 16;
+    private static final int CAPABILITY_CBOR = 0x04;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    protected final U2FHelper helper;
+    protected final U2FCommandEncoder encoder;
+    protected final U2FResponseDecoder decoder;
+    protected final int inPacketSize;
+    protected final int outPacketSize;
+    private final int maxMessageLength;
+    protected U2FTraceSink trace;
+    protected volatile long deadline;
+    protected volatile boolean aborted;
+    private int capabilities;
+    private final Object transferLock = new Object();
+    private boolean transferring;
+    private final Random random;
+    private final U2FMetrics metrics = U2FMetrics.getInstance();
+
+    protected U2FTransportHID(int packetSize) {
+        this(packetSize, packetSize);
+    }
+
+    /**
+     * @param inPacketSize  The size of the input reports, from the device.
+     * @param outPacketSize The size of the output reports, to the device.
+     */
+    protected U2FTransportHID(int inPacketSize, int outPacketSize) {
+        if ((inPacketSize < U2FCommandEncoder.MIN_PACKET_SIZE) || (outPacketSize < U2FCommandEncoder.MIN_PACKET_SIZE)) {
+            throw new IllegalArgumentException("Report too small for the HID framing");
+        }
+        this.inPacketSize = inPacketSize;
+        this.outPacketSize = outPacketSize;
+        maxMessageLength = U2FCommandEncoder.getMaxMessageLength(outPacketSize);
+        helper = new U2FHelper();
+        encoder = new U2FCommandEncoder(helper);
+        decoder = new U2FResponseDecoder(helper);
+        random = new Random();
+    }
+
+    public void init() throws IOException {
+        long start = System.nanoTime();
+        if (trace != null) {
+            trace.event("Initializing channel");
+        }
+        byte nonce[] = new byte[8];
+        random.nextBytes(nonce);
+        byte[] response = exchange(TAG_INIT, nonce);
+
+        byte[] readNonce = new byte[8];
+        System.arraycopy(response, 0, readNonce, 0, 8);
+        if (!Arrays.equals(nonce, readNonce)) {
+            throw new IOException("Invalid channel initialization");
+        }
+        int channel = ((response[8] & 0xff) << 24) | ((response[9] & 0xff) << 16) | ((response[10] & 0xff) << 8) | (response[11] & 0xff);
+        helper.setChannel(channel);
+        capabilities = (response.length > INIT_CAPABILITIES_OFFSET ? response[INIT_CAPABILITIES_OFFSET] & 0xff : 0);
+        if (trace != null) {
+            trace.event("New channel " + helper.getChannel());
+        }
+        metrics.recordSince(U2FMetrics.Phase.INIT, start);
+    }
+
+    public byte[] exchange(byte[] command) throws IOException {
+        long start = System.nanoTime();
+        byte[] response = exchange(TAG_MSG, command);
+        metrics.recordSince(U2FMetrics.Phase.EXCHANGE, start);
+        return response;
+    }
+
+    public byte[] exchangeCbor(byte[] request) throws IOException {
+        long start = System.nanoTime();
+        byte[] response = exchange(TAG_CBOR, request);
+        metrics.recordSince(U2FMetrics.Phase.EXCHANGE, start);
+        return response;
+    }
+
+    /**
+     * @return The shortest useful time between two polls, or 0 if the transport does not know.
+     */
+    public int getPollInterval() {
+        return 0;
+    }
+
+    /**
+     * @return The size of the output reports.
+     */
+    public int getPacketSize() {
+        return outPacketSize;
+    }
+
+    /**
+     * @return The size of the input reports.
+     */
+    public int getInPacketSize() {
+        return inPacketSize;
+    }
+
+    public boolean supportsCbor() {
+        return (capabilities & CAPABILITY_CBOR) != 0;
+    }
+
+    /**
+     * @return The capability flags the authenticator announced when the channel was allocated.
+     */
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Restore the capabilities announced with a channel reused through {@link #setChannel(int)}.
+     */
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public byte[] exchange(byte tag, byte[] command) throws IOException {
+        if (tag == TAG_INIT) {
+            return transfer(tag, command);
+        }
+        if (helper.getChannel() == U2FHelper.CHANNEL_BROADCAST) {
+            // left after an aborted exchange
+            init();
+        }
+        try {
+            return transfer(tag, command);
+        } catch (U2FChannelException e) {
+            resynchronize(e);
+        } catch (U2FHIDException e) {
+            if (!e.isChannelError()) {
+                throw e;
+            }
+            resynchronize(e);
+        }
+        return transfer(tag, command);
+    }
+
+    public void setDeadline(long deadlineNanos) {
+        deadline = deadlineNanos;
+    }
+
+    /**
+     * @throws U2FTimeoutException If the deadline has passed.
+     */
+    protected void checkDeadline() throws U2FTimeoutException {
+        long current = deadline;
+        if ((current != 0) && (System.nanoTime() - current >= 0)) {
+            throw new U2FTimeoutException("Request deadline exceeded");
+        }
+    }
+
+    public void abort() {
+        synchronized (transferLock) {
+            if (!transferring) {
+                return;
+            }
+            aborted = true;
+            abortTransfer();
+        }
+    }
+
+    /**
+     * Unblock the packet transfer in progress, from the thread calling {@link #abort()}. The
+     * blocked call must then check {@link #checkAborted()}. The abort is flagged before this is
+     * called, so a transfer started just after it must check the flag once started. Does nothing
+     * unless overridden.
+     */
+    protected void abortTransfer() {
+    }
+
+    /**
+     * @throws InterruptedIOException If the exchange in progress was aborted.
+     */
+    protected void checkAborted() throws InterruptedIOException {
+        if (aborted) {
+            throw new InterruptedIOException("Exchange aborted");
+        }
+    }
+
+    public void cancel() throws IOException {
+        if (trace != null) {
+            trace.event("Cancelling");
+        }
+        writeMessage(TAG_CANCEL, NO_DATA);
+    }
+
+    /**
+     * @param timeoutMillis The longest a single transfer may take.
+     * @return The {@link System#nanoTime()} a transfer starting now must end by: the deadline, or
+     * the transfer timeout if sooner.
+     */
+    protected long getWaitDeadline(long timeoutMillis) {
+        long limit = System.nanoTime() + timeoutMillis * 1000000;
+        long current = deadline;
+        return ((current != 0) && (current - limit < 0) ? current : limit);
+    }
+
+    /**
+     * @return The channel in use, or {@link U2FHelper#CHANNEL_BROADCAST} before {@link #init()}.
+     */
+    public int getChannel() {
+        return helper.getChannel();
+    }
+
+    /**
+     * Reuse a channel allocated earlier instead of calling {@link #init()}. If it turns out not to
+     * be valid any more, a new one is allocated on the first exchange.
+     */
+    public void setChannel(int channel) {
+        helper.setChannel(channel);
+    }
+
+    private void resynchronize(IOException cause) throws IOException {
+        metrics.increment(U2FMetrics.Counter.CHANNEL_ERRORS);
+        if (trace != null) {
+            trace.event("Resynchronizing channel: " + cause.getMessage());
+        }
+        helper.setChannel(U2FHelper.CHANNEL_BROADCAST);
+        init();
+    }
+
+    private byte[] transfer(byte tag, byte[] command) throws IOException {
+        byte[] responseData;
+        if (trace != null) {
+            trace.message(true, command);
+        }
+        synchronized (transferLock) {
+            transferring = true;
+        }
+        try {
+            checkDeadline();
+            writeMessage(tag, command);
+            responseData = readMessage(tag);
+        } catch (IOException e) {
+            if (!endTransfer()) {
+                throw e;
+            }
+            abandonChannel();
+            InterruptedIOException abort = new InterruptedIOException("Exchange aborted");
+            abort.initCause(e);
+            throw abort;
+        } finally {
+            endTransfer();
+        }
+        if (trace != null) {
+            trace.message(false, responseData);
+        }
+        return responseData;
+    }
+
+    /**
+     * @return Whether the transfer ending was aborted.
+     */
+    private boolean endTransfer() {
+        synchronized (transferLock) {
+            boolean wasAborted = aborted;
+            transferring = false;
+            aborted = false;
+            return wasAborted;
+        }
+    }
+
+    /**
+     * Cancel the aborted command and leave the channel, so that no packet of its response is
+     * taken for the answer to the next one.
+     */
+    private void abandonChannel() {
+        if (helper.getChannel() == U2FHelper.CHANNEL_BROADCAST) {
+            return;
+        }
+        try {
+            cancel();
+        } catch (IOException e) {
+            log("Could not cancel: " + e.getMessage());
+        }
+        helper.setChannel(U2FHelper.CHANNEL_BROADCAST);
+    }
+
+    /**
+     * Send a framed message to the device.
+     *
+     * @param tag     The command tag.
+     * @param command The command payload.
+     * @throws IOException If a packet could not be sent.
+     */
+    void writeMessage(byte tag, byte[] command) throws IOException {
+        if (command.length > maxMessageLength) {
+            throw new IOException("Message of " + command.length + " bytes too long for " + outPacketSize + " byte reports");
+        }
+        encoder.reset(tag, command);
+        writePackets();
+    }
+
+    /**
+     * Read a framed message from the device.
+     *
+     * @param tag The command the message must answer.
+     * @return The reassembled message.
+     * @throws IOException If a packet could not be read or is invalid.
+     */
+    byte[] readMessage(byte tag) throws IOException {
+        decoder.reset(tag);
+        boolean complete = false;
+        while (!complete) {
+            checkAborted();
+            checkDeadline();
+            ByteBuffer packet = readPacket();
+            tracePacket(false, packet);
+            complete = decoder.feed(packet, inPacketSize);
+        }
+        return decoder.getResponse();
+    }
+
+    /**
+     * Send every packet left in {@link #encoder}.
+     *
+     * @throws IOException If a packet could not be sent.
+     */
+    protected abstract void writePackets() throws IOException;
+
+    /**
+     * Read the next packet from the device.
+     *
+     * @return A buffer holding the packet at position 0. It is only valid until the next read.
+     * @throws IOException If no packet could be read.
+     */
+    protected abstract ByteBuffer readPacket() throws IOException;
+
+    /**
+     * Count a packet and hand it to the trace sink, if any. The buffer position is left unchanged.
+     */
+    protected void tracePacket(boolean out, ByteBuffer packet) {
+        metrics.increment(out ? U2FMetrics.Counter.PACKETS_OUT : U2FMetrics.Counter.PACKETS_IN);
+        if (trace != null) {
+            trace.packet(out, packet, out ? outPacketSize : inPacketSize);
+        }
+    }
+
+    /**
+     * Write a debug line. Does nothing unless overridden.
+     */
+    protected void log(String message) {
+    }
+
+    /**
+     * @param sink Receives the traffic of this transport, or null to stop tracing.
+     */
+    public void setTraceSink(U2FTraceSink sink) {
+        this.trace = sink;
+    }
+
+    /**
+     * Trace the traffic as hex lines written to {@link #log(String)}.
+     */
+    public void setDebug(boolean debugFlag) {
+        if (!debugFlag) {
+            trace = null;
+            return;
+        }
+        trace = new U2FHexTraceSink() {
+            @Override
+            protected void write(StringBuilder line) {
+                log(line.toString());
+            }
+        };
+    }
+}
@@ -0,0 +1,179 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A transport answering with the packets a {@link U2FWireRecorder} recorded from a device, so
+ * that a field session can be run again through the framing and the sign and register flows on
+ * a plain JVM.
+ *
+ * The packets sent are framed as usual and only stand in for the recorded ones: each consumes
+ * the next recorded outgoing packet, if any, and the next read returns the next recorded
+ * incoming packet. The nonce of a recorded INIT response is replaced with the one just sent. In
+ * real time mode each incoming packet is held back for as long as the device took to send it
+ * after the preceding outgoing packet; otherwise it is returned at once.
+ */
+public class U2FTransportReplay extends U2FTransportHID {
+
+    private static final int NONCE_OFFSET = 7;
+    private static final int NONCE_LENGTH = 8;
+
+    private final List<U2FWireRecording.Record> records;
+    private final int initialChannel;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private boolean realTime;
+    private int next;
+    private long lastOutNanos;
+    private long lastWriteNanos;
+
+    /**
+     * @param recording The recording.
+     * @param stream    The stream of the transport to replay.
+     * @throws IOException If the stream has no packet.
+     */
+    public U2FTransportReplay(U2FWireRecording recording, int stream) throws IOException {
+        this(packetsOf(recording, stream));
+    }
+
+    private U2FTransportReplay(List<U2FWireRecording.Record> records) {
+        super(records.get(0).length);
+        this.records = records;
+        writeBuffer = ByteBuffer.allocate(outPacketSize);
+        readBuffer = ByteBuffer.allocate(inPacketSize);
+        // a session resumed on a cached channel starts without INIT
+        int channel = U2FHelper.CHANNEL_BROADCAST;
+        for (U2FWireRecording.Record record : records) {
+            if ((record.type == U2FWireRecorder.TYPE_OUT) && (record.payload.length >= 4)) {
+                channel = ByteBuffer.wrap(record.payload).getInt(0);
+                break;
+            }
+        }
+        initialChannel = channel;
+        helper.setChannel(initialChannel);
+    }
+
+    private static List<U2FWireRecording.Record> packetsOf(U2FWireRecording recording, int stream) throws IOException {
+        List<U2FWireRecording.Record> packets = new ArrayList<U2FWireRecording.Record>();
+        for (U2FWireRecording.Record record : recording.getRecords(stream)) {
+            if (record.isPacket()) {
+                packets.add(record);
+            }
+        }
+        if (packets.isEmpty()) {
+            throw new IOException("No packet recorded on stream " + stream);
+        }
+        return packets;
+    }
+
+    /**
+     * @param realTime TRUE to return each incoming packet after the delay recorded.
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * @return TRUE if the recording starts with a channel allocation, to be replayed with
+     * {@link #init()} before the first message.
+     */
+    public boolean startsWithInit() {
+        return initialChannel == U2FHelper.CHANNEL_BROADCAST;
+    }
+
+    /**
+     * Start the replay over.
+     */
+    public void rewind() {
+        next = 0;
+        helper.setChannel(initialChannel);
+    }
+
+    @Override
+    protected void writePackets() throws IOException {
+        while (encoder.hasRemaining()) {
+            writeBuffer.clear();
+            encoder.encode(writeBuffer, outPacketSize);
+            tracePacket(true, writeBuffer);
+            if (writeBuffer.get(4) == TAG_INIT) {
+                for (int i = 0; i < NONCE_LENGTH; i++) {
+                    nonce[i] = writeBuffer.get(NONCE_OFFSET + i);
+                }
+            }
+            if ((next < records.size()) && (records.get(next).type == U2FWireRecorder.TYPE_OUT)) {
+                lastOutNanos = records.get(next).nanos;
+                next++;
+            }
+            lastWriteNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    protected ByteBuffer readPacket() throws IOException {
+        while ((next < records.size()) && (records.get(next).type != U2FWireRecorder.TYPE_IN)) {
+            lastOutNanos = records.get(next).nanos;
+            next++;
+        }
+        if (next >= records.size()) {
+            throw new IOException("End of recording");
+        }
+        U2FWireRecording.Record record = records.get(next++);
+        if (realTime) {
+            waitUntil(lastWriteNanos + (record.nanos - lastOutNanos));
+        }
+        readBuffer.clear();
+        readBuffer.put(record.payload, 0, Math.min(record.payload.length, inPacketSize));
+        while (readBuffer.hasRemaining()) {
+            readBuffer.put((byte) 0);
+        }
+        if (readBuffer.get(4) == TAG_INIT) {
+            for (int i = 0; i < NONCE_LENGTH; i++) {
+                readBuffer.put(NONCE_OFFSET + i, nonce[i]);
+            }
+        }
+        readBuffer.rewind();
+        return readBuffer;
+    }
+
+    private static void waitUntil(long deadline) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Replay interrupted");
+        }
+    }
+
+    @Override
+    protected void log(String message) {
+        System.out.println(message);
+    }
+
+    public void close() throws IOException {
+    }
+}
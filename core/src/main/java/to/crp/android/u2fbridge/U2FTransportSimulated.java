@@ -0,0 +1,63 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport talking to an in-process {@link U2FSoftAuthenticator}.
+ */
+public class U2FTransportSimulated extends U2FTransportHID {
+
+    private final U2FSoftAuthenticator authenticator;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+
+    public U2FTransportSimulated(U2FSoftAuthenticator authenticator) {
+        super(authenticator.getPacketSize());
+        this.authenticator = authenticator;
+        writeBuffer = ByteBuffer.allocate(outPacketSize);
+        readBuffer = ByteBuffer.allocate(inPacketSize);
+    }
+
+    @Override
+    protected void writePackets() throws IOException {
+        while (encoder.hasRemaining()) {
+            encoder.encode(writeBuffer, outPacketSize);
+            tracePacket(true, writeBuffer);
+            authenticator.write(writeBuffer);
+        }
+    }
+
+    @Override
+    protected ByteBuffer readPacket() throws IOException {
+        readBuffer.clear();
+        authenticator.read(readBuffer);
+        readBuffer.rewind();
+        return readBuffer;
+    }
+
+    @Override
+    protected void log(String message) {
+        System.out.println(message);
+    }
+
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,99 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+/**
+ * A thread running an action when a deadline passes, for I/O calls that cannot time out by
+ * themselves: the action aborts the blocked call, which then checks {@link #hasFired()}.
+ *
+ * Arming and disarming only update fields under the lock and do not allocate, so the watchdog
+ * can guard every packet.
+ */
+public class U2FWatchdog extends Thread {
+
+    private final Runnable action;
+    private long deadline;
+    private boolean armed;
+    private boolean fired;
+    private boolean stopped;
+
+    /**
+     * @param name   The thread name.
+     * @param action Run on the watchdog thread when an armed deadline passes.
+     */
+    public U2FWatchdog(String name, Runnable action) {
+        super(name);
+        this.action = action;
+        setDaemon(true);
+    }
+
+    /**
+     * @param deadlineNanos The {@link System#nanoTime()} at which to run the action.
+     */
+    public synchronized void arm(long deadlineNanos) {
+        deadline = deadlineNanos;
+        armed = true;
+        fired = false;
+        notify();
+    }
+
+    public synchronized void disarm() {
+        armed = false;
+    }
+
+    /**
+     * @return Whether the action ran since the last {@link #arm(long)}.
+     */
+    public synchronized boolean hasFired() {
+        return fired;
+    }
+
+    public synchronized void shutdown() {
+        stopped = true;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        for (; ; ) {
+            synchronized (this) {
+                try {
+                    while (!stopped) {
+                        if (!armed) {
+                            wait();
+                            continue;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (stopped) {
+                    return;
+                }
+                armed = false;
+                fired = true;
+            }
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Records the packets of transports into a memory mapped ring file, overwriting the oldest
+ * records once full, so that the last sessions can be read back with {@link U2FWireRecording}
+ * and replayed with {@link U2FTransportReplay}.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes:
+ * <pre>
+ *  0  int   magic "U2FT"
+ *  4  short version
+ *  6  short payload size, the bytes of each packet kept
+ *  8  int   capacity, in records
+ * 12  int   streams opened since the file was created
+ * 16  long  records written since the file was created
+ * 24  long  wall clock time of the first record, in milliseconds
+ * </pre>
+ * followed by the records, each of 16 bytes plus the payload size:
+ * <pre>
+ *  0  long  nanoseconds since the first record, not counting the time the file was closed
+ *  8  short stream, one per transport
+ * 10  byte  type: {@link #TYPE_OUT}, {@link #TYPE_IN} or {@link #TYPE_EVENT}
+ * 12  short length of the packet, or of the UTF-8 event description
+ * 16  payload, truncated to the payload size
+ * </pre>
+ * Recording a packet copies it into the mapping under a lock and does not allocate.
+ *
+ * An existing file of the same layout is appended to, so that recordings outlive the process.
+ */
+public class U2FWireRecorder {
+
+    public static final int MAGIC = 0x55324654;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_HEADER_SIZE = 16;
+
+    public static final int TYPE_OUT = 0;
+    public static final int TYPE_IN = 1;
+    public static final int TYPE_EVENT = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int payloadSize;
+    private final int recordSize;
+    private final int capacity;
+    private final long startNanos;
+    private long count;
+    private int nextStream;
+
+    /**
+     * Open the ring file, creating it unless a file of the same layout exists.
+     *
+     * @param path        The file.
+     * @param capacity    The number of records kept.
+     * @param payloadSize The bytes of each packet kept, at least the HID report size.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public U2FWireRecorder(File path, int capacity, int payloadSize) throws IOException {
+        this.capacity = capacity;
+        this.payloadSize = payloadSize;
+        recordSize = RECORD_HEADER_SIZE + payloadSize;
+        long size = HEADER_SIZE + (long) capacity * recordSize;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            boolean resume = (file.length() == size);
+            if (!resume) {
+                file.setLength(0);
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            resume &= (buffer.getInt(0) == MAGIC) && (buffer.getShort(4) == VERSION)
+                    && (buffer.getShort(6) == (short) payloadSize) && (buffer.getInt(8) == capacity);
+            if (resume) {
+                nextStream = buffer.getInt(12);
+                count = buffer.getLong(16);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (count > 0) {
+            long last = HEADER_SIZE + ((count - 1) % capacity) * recordSize;
+            startNanos = System.nanoTime() - buffer.getLong((int) last) - 1;
+        } else {
+            startNanos = System.nanoTime();
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, (short) VERSION);
+            buffer.putShort(6, (short) payloadSize);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, 0);
+            buffer.putLong(16, 0);
+            buffer.putLong(24, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return A sink recording the traffic of one transport under a stream of its own.
+     */
+    public synchronized U2FTraceSink newSink() {
+        final int stream = nextStream++;
+        buffer.putInt(12, nextStream);
+        return new U2FTraceSink() {
+            public void packet(boolean out, ByteBuffer packet, int length) {
+                record(stream, out ? TYPE_OUT : TYPE_IN, packet, length);
+            }
+
+            public void message(boolean out, byte[] data) {
+                // rebuilt from the packets on replay
+            }
+
+            public void event(String description) {
+                byte[] data = description.getBytes(UTF8);
+                record(stream, TYPE_EVENT, ByteBuffer.wrap(data), data.length);
+            }
+        };
+    }
+
+    /**
+     * Write the records out to the file.
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private synchronized void record(int stream, int type, ByteBuffer data, int length) {
+        int position = HEADER_SIZE + (int) (count % capacity) * recordSize;
+        buffer.putLong(position, System.nanoTime() - startNanos);
+        buffer.putShort(position + 8, (short) stream);
+        buffer.put(position + 10, (byte) type);
+        buffer.put(position + 11, (byte) 0);
+        buffer.putShort(position + 12, (short) length);
+        buffer.putShort(position + 14, (short) 0);
+        int start = data.position();
+        int kept = Math.min(Math.min(length, payloadSize), data.limit() - start);
+        position += RECORD_HEADER_SIZE;
+        for (int i = 0; i < kept; i++) {
+            buffer.put(position + i, data.get(start + i));
+        }
+        for (int i = kept; i < payloadSize; i++) {
+            buffer.put(position + i, (byte) 0);
+        }
+        count++;
+        buffer.putLong(16, count);
+    }
+}
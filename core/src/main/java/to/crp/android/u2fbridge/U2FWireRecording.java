@@ -0,0 +1,181 @@
+/*
+*******************************************************************************
+*   Android U2F USB Bridge
+*   (c) 2016 Ledger
+*
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+package to.crp.android.u2fbridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The records of a ring file written by {@link U2FWireRecorder}, oldest first.
+ */
+public class U2FWireRecording {
+
+    private static final byte TAG_MSG = (byte) 0x83;
+
+    public static class Record {
+        /** Nanoseconds since the first record. */
+        public final long nanos;
+        public final int stream;
+        public final int type;
+        /** The length of the packet or event, which may exceed the payload kept. */
+        public final int length;
+        public final byte[] payload;
+
+        Record(long nanos, int stream, int type, int length, byte[] payload) {
+            this.nanos = nanos;
+            this.stream = stream;
+            this.type = type;
+            this.length = length;
+            this.payload = payload;
+        }
+
+        public boolean isPacket() {
+            return type != U2FWireRecorder.TYPE_EVENT;
+        }
+    }
+
+    private final List<Record> records;
+    private final long startMillis;
+
+    private U2FWireRecording(List<Record> records, long startMillis) {
+        this.records = records;
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * @param path A ring file.
+     * @return Its records.
+     * @throws IOException If the file cannot be read or is not a ring file.
+     */
+    public static U2FWireRecording read(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if ((buffer.capacity() < U2FWireRecorder.HEADER_SIZE) || (buffer.getInt(0) != U2FWireRecorder.MAGIC)) {
+                throw new IOException("Not a wire recording");
+            }
+            if (buffer.getShort(4) != U2FWireRecorder.VERSION) {
+                throw new IOException("Unsupported wire recording version " + buffer.getShort(4));
+            }
+            int payloadSize = buffer.getShort(6) & 0xffff;
+            int capacity = buffer.getInt(8);
+            long count = buffer.getLong(16);
+            int recordSize = U2FWireRecorder.RECORD_HEADER_SIZE + payloadSize;
+            if (buffer.capacity() < U2FWireRecorder.HEADER_SIZE + (long) capacity * recordSize) {
+                throw new IOException("Truncated wire recording");
+            }
+            int kept = (int) Math.min(count, capacity);
+            List<Record> records = new ArrayList<Record>(kept);
+            for (long i = count - kept; i < count; i++) {
+                int position = U2FWireRecorder.HEADER_SIZE + (int) (i % capacity) * recordSize;
+                int length = buffer.getShort(position + 12) & 0xffff;
+                byte[] payload = new byte[Math.min(length, payloadSize)];
+                for (int j = 0; j < payload.length; j++) {
+                    payload[j] = buffer.get(position + U2FWireRecorder.RECORD_HEADER_SIZE + j);
+                }
+                records.add(new Record(buffer.getLong(position), buffer.getShort(position + 8) & 0xffff,
+                        buffer.get(position + 10), length, payload));
+            }
+            return new U2FWireRecording(records, buffer.getLong(24));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return The wall clock time of the first record ever written, in milliseconds.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return The records of one transport.
+     */
+    public List<Record> getRecords(int stream) {
+        List<Record> result = new ArrayList<Record>();
+        for (Record record : records) {
+            if (record.stream == stream) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The streams recorded, in the order of their first record.
+     */
+    public List<Integer> getStreams() {
+        List<Integer> streams = new ArrayList<Integer>();
+        for (Record record : records) {
+            if (!streams.contains(record.stream)) {
+                streams.add(record.stream);
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Reassemble the U2F messages a transport sent from its packets, through the same decoder
+     * the transports use. Messages whose first packets were overwritten are left out.
+     *
+     * @return The APDUs sent on the stream, oldest first.
+     */
+    public List<byte[]> getMessages(int stream) {
+        U2FHelper helper = new U2FHelper();
+        U2FResponseDecoder decoder = new U2FResponseDecoder(helper);
+        List<byte[]> messages = new ArrayList<byte[]>();
+        boolean started = false;
+        byte command = 0;
+        for (Record record : getRecords(stream)) {
+            if ((record.type != U2FWireRecorder.TYPE_OUT) || (record.payload.length < 7)) {
+                continue;
+            }
+            ByteBuffer packet = ByteBuffer.wrap(record.payload);
+            if ((record.payload[4] & 0x80) != 0) {
+                command = record.payload[4];
+                helper.setChannel(packet.getInt(0));
+                decoder.reset(command);
+                started = true;
+            } else if (!started) {
+                continue;
+            }
+            try {
+                if (decoder.feed(packet, record.payload.length)) {
+                    if (command == TAG_MSG) {
+                        messages.add(decoder.getResponse());
+                    }
+                    started = false;
+                }
+            } catch (IOException e) {
+                started = false;
+            }
+        }
+        return messages;
+    }
+}